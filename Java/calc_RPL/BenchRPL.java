@@ -0,0 +1,269 @@
+
+import java.io.*;
+
+
+
+/*
+ * Benchmarks of the RPL calculator, run as a plain program: java BenchRPL [-b <benchmark>] [-k <nb_iterations>] [-w <nb_rounds>]
+ * Each benchmark runs the same work for several rounds, the first half only warming up the JIT,
+ * and reports the best time of the measured rounds, so that runs can be compared to catch regressions:
+ *  - arith : push & operate on ordinary values, in every numeric mode of the stack,
+ *  - stack : fill a deep stack then fold it with additions,
+ *  - render: toString() of the stack, as displayed after each token,
+ *  - parse : CalcRPL.processLine on typical lines, from tokenizing to display,
+ *  - socket: end-to-end sessions over loopback with 1, 16 and 256 clients, for both server engines.
+ */
+class BenchRPL {
+
+    final static String MODES[] = { "int", "long", "big" };
+    final static String USAGE = "Args error, please use the exe as follows:\n"+
+                                "-b <benchmark>     : arith, stack, render, parse, socket or all, default is all\n"+
+                                "-k <nb_iterations> : number of iterations per round, default is 1000000\n"+
+                                "-w <nb_rounds>     : number of rounds, half of them used as warm-up, default is 10\n"+
+                                "-p <port_number>   : first port of the loopback servers, default is 12350";
+
+    // Output and log discarding everything, so that only the calculator itself is measured
+    final static PrintStream nullStream = new PrintStream( new OutputStream() {
+        public void write( int b ) {}
+        public void write( byte b[], int off, int len ) {}
+    } );
+    final static Writer nullWriter = new Writer() {
+        public void write( char cbuf[], int off, int len ) {}
+        public void flush() {}
+        public void close() {}
+    };
+
+    int nbIterations = 1000000;
+    int nbRounds = 10;
+    long check = 0;
+
+    /*
+     * Work measured by one benchmark: each call is one round, returning a value so that the work cannot be optimized away.
+     */
+    abstract class Round {
+        abstract long run();
+    }
+
+    /*
+     * Run the rounds, and print the best time of the measured ones, per operation.
+     */
+    void measure( String name, long nbOps, Round round ) {
+        long start, elapsed, best = Long.MAX_VALUE;
+
+        for(int i = 0; i < nbRounds; i++)
+        {
+            start = System.nanoTime();
+            check += round.run();
+            elapsed = System.nanoTime() - start;
+            if(i >= nbRounds/2 && elapsed < best)
+                best = elapsed;
+        }
+        System.out.println("  "+name+": "+best/1000000+" ms, "+String.format("%.2f", (double)best/nbOps)+" ns/op");
+    }
+
+    /*
+     * Accumulate small values with every operator, the way a typical session does.
+     */
+    void arithmetic() {
+        System.out.println("Arithmetic: "+nbIterations+" x 8 operations per round");
+        for(int mode = PileRPL.MODE_INT; mode <= PileRPL.MODE_BIG; mode++)
+        {
+            final int stackMode = mode;
+            measure( MODES[mode], nbIterations*8L, new Round() {
+                long run() {
+                    PileRPL stack = new PileRPL( 3, stackMode, nullWriter, nullStream );
+                    stack.empile( 1 );
+                    for( int i = 0; i < nbIterations; i++ ) {
+                        stack.empile( i & 1023 );
+                        stack.addition();
+                        stack.empile( 3 );
+                        stack.multiplication();
+                        stack.empile( 7 );
+                        stack.soustraction();
+                        stack.empile( 3 );
+                        stack.division();
+                    }
+                    return stack.toString().length();
+                }
+            } );
+        }
+    }
+
+    /*
+     * Push up to the depth of the stack, then pop everything back through additions.
+     */
+    void pushPop() {
+        final int depth = 64;
+        final int nbFills = Math.max( 1, nbIterations/depth );
+
+        System.out.println("Push & pop: "+nbFills+" x "+depth+" pushes and additions per round");
+        measure( "int", (long)nbFills*depth*2, new Round() {
+            long run() {
+                PileRPL stack = new PileRPL( depth, PileRPL.MODE_INT, nullWriter, nullStream );
+                stack.empile( 0 );
+                for( int i = 0; i < nbFills; i++ ) {
+                    for( int j = 1; j < depth; j++ )
+                        stack.empile( j );
+                    for( int j = 1; j < depth; j++ )
+                        stack.addition();
+                }
+                return stack.toString().length();
+            }
+        } );
+    }
+
+    /*
+     * Render stacks of the usual depth and of a deep one.
+     */
+    void render() {
+        final int depths[] = { 3, 64 };
+
+        System.out.println("Rendering: "+nbIterations/10+" toString() per round");
+        for(int d = 0; d < depths.length; d++)
+        {
+            final PileRPL stack = new PileRPL( depths[d], PileRPL.MODE_INT, nullWriter, nullStream );
+            for(int j = 0; j < depths[d]; j++)
+                stack.empile( 1000*j - 12345 );
+            measure( "depth "+depths[d], nbIterations/10, new Round() {
+                long run() {
+                    long length = 0;
+                    for( int i = 0; i < nbIterations/10; i++ )
+                        length += stack.toString().length();
+                    return length;
+                }
+            } );
+        }
+    }
+
+    /*
+     * Process the kind of lines TCPClient sends: operand and operator, longer expressions.
+     * Starting from one value, each line leaves one value on the stack, so that the normal path is measured
+     * and not the "Stack is full" one. The stack is displayed after each token, as in a real session.
+     */
+    void parse() {
+        final String lines[] = { "42 +", "17 +", "1 2 3 * + -", "5,6;7:*_+|-", "123456789 /" };
+        final int nbLines = nbIterations/10;
+
+        System.out.println("Parsing: "+nbLines+" lines per round");
+        measure( "processLine", nbLines, new Round() {
+            long run() {
+                CalcRPL calc = new CalcRPL( nullWriter, null, 10, PileRPL.MODE_INT, null, nullStream );
+                PileRPL stack = new PileRPL( 10, PileRPL.MODE_INT, nullWriter, nullStream );
+                stack.empile( 0 );
+                for( int i = 0; i < nbLines; i++ )
+                    calc.processLine( lines[i % lines.length], stack );
+                return stack.toString().length();
+            }
+        } );
+    }
+
+    /*
+     * Start both remote calculator engines in this process, then run StressClient sessions against them.
+     */
+    void sockets( int serverPort ) {
+        final int nbClients[] = { 1, 16, 256 };
+        final String engines[][] = {
+            { "threads", "-p", ""+serverPort, "-n", "10" },
+            { "nio 2", "-p", ""+(serverPort+1), "-n", "10", "-nio", "2" }
+        };
+        StressClient clients[];
+        long start, elapsed, tokens, errors;
+        int nbOps;
+
+        for(int e = 0; e < engines.length; e++)
+        {
+            final String serverArgs[] = new String[engines[e].length-1];
+            System.arraycopy( engines[e], 1, serverArgs, 0, serverArgs.length );
+            Thread server = new Thread() {
+                public void run() {
+                    CalcRPL.main( serverArgs );
+                }
+            };
+            server.setDaemon( true );
+            server.start();
+            try {
+                Thread.sleep( 500 );
+            } catch( InterruptedException ie ) {
+                return;
+            }
+
+            System.out.println("Sockets, "+engines[e][0]+":");
+            for(int c = 0; c < nbClients.length; c++)
+            {
+                nbOps = Math.max( 10, nbIterations/100/nbClients[c] );
+                clients = new StressClient[nbClients[c]];
+                tokens = 0;
+                errors = 0;
+                start = System.nanoTime();
+                for(int i = 0; i < nbClients[c]; i++)
+                {
+                    clients[i] = new StressClient( i, "127.0.0.1", serverPort+e, nbOps );
+                    clients[i].start();
+                }
+                try {
+                    for(int i = 0; i < nbClients[c]; i++)
+                        clients[i].join();
+                } catch( InterruptedException ie ) {
+                    return;
+                }
+                elapsed = System.nanoTime() - start;
+                for(int i = 0; i < nbClients[c]; i++)
+                {
+                    tokens += clients[i].tokens;
+                    errors += clients[i].errors + (clients[i].connected ? 0 : 1);
+                }
+                System.out.println("  "+nbClients[c]+" clients x "+nbOps+" lines: "+elapsed/1000000+" ms, "+
+                                    (long)(tokens*1e9/elapsed)+" ops/s"+(errors > 0 ? ", "+errors+" errors" : ""));
+            }
+        }
+    }
+
+	public static void main( String[] args ) {
+        BenchRPL bench = new BenchRPL();
+        String benchmark = "all";
+        int serverPort = 12350;
+        int i;
+
+        if(args.length%2 != 0)
+        {
+            System.out.println(USAGE);
+            return;
+        }
+
+        for(i = 0; i < args.length/2; i++)
+        {
+            try
+            {
+                if(args[2*i].equals("-b"))
+                    benchmark = args[2*i+1];
+                else if(args[2*i].equals("-k"))
+                    bench.nbIterations = Integer.parseInt(args[2*i+1]);
+                else if(args[2*i].equals("-w"))
+                    bench.nbRounds = Integer.parseInt(args[2*i+1]);
+                else if(args[2*i].equals("-p"))
+                    serverPort = Integer.parseInt(args[2*i+1]);
+                else
+                {
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+            catch(NumberFormatException numE){
+                System.out.println("Please enter an integer after "+args[2*i]);
+                return;
+            }
+        }
+
+        if(benchmark.equals("arith") || benchmark.equals("all"))
+            bench.arithmetic();
+        if(benchmark.equals("stack") || benchmark.equals("all"))
+            bench.pushPop();
+        if(benchmark.equals("render") || benchmark.equals("all"))
+            bench.render();
+        if(benchmark.equals("parse") || benchmark.equals("all"))
+            bench.parse();
+        if(benchmark.equals("socket") || benchmark.equals("all"))
+            bench.sockets( serverPort );
+        System.out.println("(check "+bench.check+")");
+	}
+}
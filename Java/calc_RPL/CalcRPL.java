@@ -7,24 +7,33 @@ public class CalcRPL extends Thread {
 	Socket socket;
 	BufferedReader inBuffer;
 	PrintStream printStream;
-    BufferedWriter logBuffer;
-    BufferedWriter histoBuffer;
+    Writer logBuffer;
+    Writer histoBuffer;
     int stackSize;
+    // Numeric mode of the stack, one of PileRPL.MODE_INT, MODE_LONG or MODE_BIG
+    int mode;
+    // Once "frame" has been entered, the replies to each line end with a "=<line_number>" line
+    boolean framed = false;
+    int sequence = 0;
+    // Reused to write each token and its comma to the history in one write
+    char histoToken[] = new char[32];
 
     // Constructor for CalcRPL in socket mode
-	public CalcRPL( Socket socket, BufferedWriter logBuffer, BufferedWriter histoBuffer, int stackSize ) {
+	public CalcRPL( Socket socket, Writer logBuffer, Writer histoBuffer, int stackSize, int mode ) {
 		this.socket = socket;
         this.logBuffer = logBuffer;
         this.histoBuffer = histoBuffer;
         this.stackSize = stackSize;
+        this.mode = mode;
 		this.start();
 	}
 
     // Constructor for CalcRPL in local mode
-	public CalcRPL(BufferedWriter logBuffer, BufferedWriter histoBuffer, int stackSize, BufferedReader inBuffer, PrintStream printStream ) {
+	public CalcRPL(Writer logBuffer, Writer histoBuffer, int stackSize, int mode, BufferedReader inBuffer, PrintStream printStream ) {
         this.logBuffer = logBuffer;
         this.histoBuffer = histoBuffer;
         this.stackSize = stackSize;
+        this.mode = mode;
         this.printStream = printStream;
         this.inBuffer = inBuffer;
 	}
@@ -33,7 +42,8 @@ public class CalcRPL extends Thread {
 	public void run() {
 		try {
 			this.inBuffer = new BufferedReader( new InputStreamReader( socket.getInputStream() ) );
-			this.printStream = new PrintStream( socket.getOutputStream() );
+			// Buffered, and flushed once per processed line, so that a reply is not split into many small packets.
+			this.printStream = new PrintStream( new BufferedOutputStream( socket.getOutputStream() ) );
 		} catch( IOException e ) {
 			try {
 				socket.close();
@@ -62,16 +72,32 @@ public class CalcRPL extends Thread {
 		ServerSocket receiver;
 		Socket socket;
         boolean useSocket = false;
+        int nbSelectors = 0;
+        BufferedReader replayBuffer = null;
+        String display = "end";
+        String replaySession = null;
+        int mode = PileRPL.MODE_INT;
+        long flushInterval = 100;
+        int flushSize = 1024;
+        HistorySink sink;
+        int session;
 
         
         if(args.length%2 != 0)
         {
             System.out.println("Args error, please use the exe as follows:\n"+
                                 "-n <number>        : size of the calculator stack, default is 3\n"+
+                                "-m <int|long|big>  : numeric mode: 32 bits wrapping, 64 bits checked, or unlimited, default is int\n"+
                                 "-i <input_file>    : input file, default is stdin\n"+
                                 "-l <debug_log_file>: debug log file, default is stdout\n"+
                                 "-h <history_file>  : file to save history, default is none\n"+
-                                "-p <port_number>   : when using socket, use -p to specify port");
+                                "-p <port_number>   : when using socket, use -p to specify port\n"+
+                                "-nio <nb_threads>  : with -p, multiplex sessions over given number of selector threads\n"+
+                                "-r <replay_file>   : replay file compiled at once, stack displayed at the end\n"+
+                                "-d <each|end|none>: with -r, when to display the stack, default is end\n"+
+                                "-u <session_id>   : with -r, only replay the history of given remote session\n"+
+                                "-f <flush_ms>     : with -p, interval between history & log writes, default is 100\n"+
+                                "-g <nb_records>   : with -p, history & log records triggering an early write, default is 1024");
             return;
         }
 
@@ -135,14 +161,84 @@ public class CalcRPL extends Thread {
                     return;
                 }
             }
+            // Check if sessions shall be multiplexed over selector threads instead of one thread per client.
+            else if(args[2*i].equals("-nio"))
+            {
+                try
+                {
+                    nbSelectors = Integer.parseInt(args[2*i+1]);
+                }
+                catch(NumberFormatException numE){
+                    System.out.println("Please enter an integer number of threads when using -nio");
+                    return;
+                }
+            }
+            // Check if a file has been specified to be replayed in batch mode.
+            else if(args[2*i].equals("-r"))
+            {
+                try{
+                    replayBuffer = new BufferedReader(new InputStreamReader(new FileInputStream(args[2*i+1])));
+                }
+                catch(FileNotFoundException notFoundE){
+                    System.out.println("Please enter a valid replay file name after -r");
+                    return;
+                }
+            }
+            // Check when the stack shall be displayed in batch mode.
+            else if(args[2*i].equals("-d") && (args[2*i+1].equals("each") || args[2*i+1].equals("end") || args[2*i+1].equals("none")))
+            {
+                display = args[2*i+1];
+            }
+            // Check the numeric mode of the stack.
+            else if(args[2*i].equals("-m"))
+            {
+                if(args[2*i+1].equals("int"))
+                    mode = PileRPL.MODE_INT;
+                else if(args[2*i+1].equals("long"))
+                    mode = PileRPL.MODE_LONG;
+                else if(args[2*i+1].equals("big"))
+                    mode = PileRPL.MODE_BIG;
+                else
+                {
+                    System.out.println("Please enter int, long or big when using -m");
+                    return;
+                }
+            }
+            // Check if only one session shall be replayed from a remote calculator history.
+            else if(args[2*i].equals("-u"))
+            {
+                replaySession = args[2*i+1];
+            }
+            // Check the interval and size of history & log writes in socket mode.
+            else if(args[2*i].equals("-f") || args[2*i].equals("-g"))
+            {
+                try
+                {
+                    if(args[2*i].equals("-f"))
+                        flushInterval = Long.parseLong(args[2*i+1]);
+                    else
+                        flushSize = Integer.parseInt(args[2*i+1]);
+                }
+                catch(NumberFormatException numE){
+                    System.out.println("Please enter an integer when using "+args[2*i]);
+                    return;
+                }
+            }
             else
             {
                 System.out.println("Args error, please use the exe as follows:\n"+
                                     "-n <number>        : size of the calculator stack, default is 3\n"+
+                                    "-m <int|long|big>  : numeric mode: 32 bits wrapping, 64 bits checked, or unlimited, default is int\n"+
                                     "-i <input_file>    : input file, default is stdin\n"+
                                     "-l <debug_log_file>: debug log file, default is stdout\n"+
                                     "-h <history_file>  : file to store the history, default is none\n"+
-                                    "-p <port_number>   : when using socket, use -p to specify port");
+                                    "-p <port_number>   : when using socket, use -p to specify port\n"+
+                                    "-nio <nb_threads>  : with -p, multiplex sessions over given number of selector threads\n"+
+                                    "-r <replay_file>   : replay file compiled at once, stack displayed at the end\n"+
+                                    "-d <each|end|none>: with -r, when to display the stack, default is end\n"+
+                                    "-u <session_id>   : with -r, only replay the history of given remote session\n"+
+                                    "-f <flush_ms>     : with -p, interval between history & log writes, default is 100\n"+
+                                    "-g <nb_records>   : with -p, history & log records triggering an early write, default is 1024");
                 return;
             }
         }
@@ -158,14 +254,36 @@ public class CalcRPL extends Thread {
                 = new BufferedWriter(new OutputStreamWriter(histoStream));
         }
         
-        if(useSocket)
+        if(replayBuffer != null)
         {
-            /* remote calculator */
+            /* batch replay */
+            CalcRPL my_calc = new CalcRPL( logBuffer, histoBuffer, stackSize, mode, replayBuffer, printStream );
+            my_calc.replay(display, replaySession);
+        }
+        else if(useSocket)
+        {
+            /* remote calculator: history & logs of all sessions go through one asynchronous writer */
+            final HistorySink closingSink = sink = new HistorySink( logBuffer, histoBuffer, flushInterval, flushSize );
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    closingSink.close();
+                }
+            });
             try {
-                receiver = new ServerSocket( serverPort );
-                while( true ) {
-                    socket = receiver.accept();
-                    new CalcRPL( socket, logBuffer, histoBuffer, stackSize );
+                if(nbSelectors > 0)
+                {
+                    /* sessions multiplexed over selector threads */
+                    new CalcRPLServerNIO( serverPort, nbSelectors, sink, stackSize, mode ).serve();
+                }
+                else
+                {
+                    receiver = new ServerSocket( serverPort );
+                    while( true ) {
+                        socket = receiver.accept();
+                        session = sink.nextSession();
+                        new CalcRPL( socket, sink.writerFor( session, false ),
+                                     sink.hasHistory() ? sink.writerFor( session, true ) : null, stackSize, mode );
+                    }
                 }
             } catch( IOException e ) {
                 System.out.println( "Connection issue" );
@@ -174,7 +292,7 @@ public class CalcRPL extends Thread {
         else
         {
             /* local calculator */
-            CalcRPL my_calc = new CalcRPL( logBuffer, histoBuffer, stackSize, inBuffer, printStream );
+            CalcRPL my_calc = new CalcRPL( logBuffer, histoBuffer, stackSize, mode, inBuffer, printStream );
             my_calc.readAndCalculate();
         }
     }
@@ -186,92 +304,25 @@ public class CalcRPL extends Thread {
      */
     public void readAndCalculate()
     {
-        String line, token,
-               delimiter = " ,;:_|";
-        StringTokenizer tokenizer;
-        ObjEmp obj;
+        String line;
 
         // Create the stack that will be used for RPL calculator
-        PileRPL myStack = new PileRPL(this.stackSize,this.logBuffer,this.printStream);
+        PileRPL myStack = new PileRPL(this.stackSize,this.mode,this.logBuffer,this.printStream);
         try
         {
-            printStream.println("Please enter an integer for the calculator, save to keep history or exit to leave.");
+            printPrompt();
+            printStream.flush();
             /* For each line in the input stream */
             while((line = this.inBuffer.readLine()) != null)
             {
                 /* If exit is matched, then the program exits */
-                if(line.equals("exit"))
+                if(!processLine(line, myStack))
                     break;
-                /* If save is matched, then try & save the history into given file */
-                if(line.equals("save"))
-                {
-                    try{
-                        if(histoBuffer != null)
-                        {
-                            // Actually save to history file, when "save" is entered.
-                            histoBuffer.flush();
-                            printStream.println("History saved!");
-                        }
-                    }
-                    catch(IOException e){
-                        try{
-                            logBuffer.write("Problem while writting to history file : did you specify one?\n");
-                            logBuffer.flush();
-                        }
-                        catch(IOException e2){
-                            printStream.println("I/O Exceptions while writting to output & log files");
-                        }
-                    }
-                    continue;
-                }
-                tokenizer = new StringTokenizer(line, delimiter);
-
-                while(tokenizer.hasMoreTokens()) {
-                    token = tokenizer.nextToken();
-                    // Process each operator and call corresponding PileRPL method.
-                    if(token.equals("/"))
-                    {
-                        myStack.division();
-                    }else if(token.equals("*"))
-                    {
-                        myStack.multiplication();
-                    }else if(token.equals("-"))
-                    {
-                        myStack.soustraction();
-                    }else if(token.equals("+"))
-                    {
-                        myStack.addition();
-                    }else
-                    {
-                        // For each entered integer, try and add it to PileRPL.
-                        try
-                        {
-                            obj = new ObjEmp(Integer.parseInt(token));
-                            myStack.empile(obj);
-                        }
-                        catch(NumberFormatException nume){
-                            printStream.println("Please enter an integer for the calculator, save to keep history or exit to leave.");
-                            continue;
-                        }
-                    }
-                    // Print the updated stack at each change.
-                    printStream.println(myStack.toString());
-                    try{
-                        // Add any new entry to the history file, if specified, to be able to replay sequence later.
-                        if(histoBuffer != null)
-                            histoBuffer.write(token+",");
-                    }
-                    catch(IOException|NullPointerException e){
-                        try{
-                            logBuffer.write("Problem while writting to history file : did you specify one?\n");
-                            logBuffer.flush();
-                        }
-                        catch(IOException e2){
-                            printStream.println("I/O Exceptions while writting to output & log files");
-                        }
-                    }
-                }
+                // A pipelining client already sent the next lines: answer them before flushing.
+                if(!framed || !this.inBuffer.ready())
+                    printStream.flush();
             }
+            printStream.flush();
         }
         catch(IOException e){
             try{
@@ -282,4 +333,164 @@ public class CalcRPL extends Thread {
             }
         }
     }
+
+    /*
+     * Compiles the whole input buffer into a ProgramRPL, then runs it in one go.
+     * The stack is displayed after each token, only at the end, or not at all, depending on display.
+     * When session is not null, only the history lines of this remote session are replayed.
+     */
+    public void replay(String display, String session)
+    {
+        PileRPL myStack = new PileRPL(this.stackSize,this.mode,this.logBuffer,this.printStream);
+        ProgramRPL program;
+        long start, compiled, executed;
+
+        try
+        {
+            start = System.nanoTime();
+            program = ProgramRPL.compile(this.inBuffer, session, this.mode);
+            compiled = System.nanoTime();
+            program.execute(myStack, printStream, display.equals("each"));
+            executed = System.nanoTime();
+
+            if(display.equals("end"))
+                printStream.println(myStack.toString());
+            printStream.flush();
+            logBuffer.write("Replayed "+program.getNbTokens()+" tokens ("+program.getNbIgnored()+" ignored): compiled in "+
+                            (compiled-start)/1000000+" ms, executed in "+(executed-compiled)/1000000+" ms\n");
+            logBuffer.flush();
+        }
+        catch(IOException e){
+            printStream.println("I/O exception from replay file!!!");
+        }
+    }
+
+    /*
+     * Display the message inviting the user to enter operands and operators.
+     */
+    public void printPrompt()
+    {
+        printStream.println("Please enter an integer for the calculator, save to keep history or exit to leave.");
+    }
+
+    /*
+     * Process one line of operands and operators on the given stack, whatever the input it comes from.
+     * Returns false when exit has been entered, true otherwise.
+     */
+    public boolean processLine(String line, PileRPL myStack)
+    {
+        int start = 0, end, length = line.length();
+        char operator;
+
+        /* If exit is matched, then the program exits */
+        if(line.equals("exit"))
+            return false;
+        /* If frame is matched, then the replies to the following lines are framed */
+        if(line.equals("frame"))
+        {
+            framed = true;
+            sequence = 0;
+            endFrame();
+            return true;
+        }
+        /* If save is matched, then try & save the history into given file */
+        if(line.equals("save"))
+        {
+            try{
+                if(histoBuffer != null)
+                {
+                    // Actually save to history file, when "save" is entered.
+                    histoBuffer.flush();
+                    printStream.println("History saved!");
+                }
+            }
+            catch(IOException e){
+                try{
+                    logBuffer.write("Problem while writting to history file : did you specify one?\n");
+                    logBuffer.flush();
+                }
+                catch(IOException e2){
+                    printStream.println("I/O Exceptions while writting to output & log files");
+                }
+            }
+            endFrame();
+            return true;
+        }
+        // Tokens are taken in place between the delimiters " ,;:_|", so that no token string is allocated.
+        while(start < length) {
+            while(start < length && ProgramRPL.isDelimiter(line.charAt(start)))
+                start++;
+            if(start == length)
+                break;
+            end = start;
+            while(end < length && !ProgramRPL.isDelimiter(line.charAt(end)))
+                end++;
+            operator = end - start == 1 ? line.charAt(start) : ' ';
+            // Process each operator and call corresponding PileRPL method.
+            if(operator == '/')
+            {
+                myStack.division();
+            }else if(operator == '*')
+            {
+                myStack.multiplication();
+            }else if(operator == '-')
+            {
+                myStack.soustraction();
+            }else if(operator == '+')
+            {
+                myStack.addition();
+            }else
+            {
+                // For each entered integer, try and add it to PileRPL.
+                try
+                {
+                    myStack.empile(line, start, end);
+                }
+                catch(NumberFormatException nume){
+                    printPrompt();
+                    start = end;
+                    continue;
+                }
+            }
+            // Print the updated stack at each change.
+            myStack.print(printStream);
+            try{
+                // Add any new entry to the history file, if specified, to be able to replay sequence later.
+                if(histoBuffer != null)
+                {
+                    if(histoToken.length <= end - start)
+                        histoToken = new char[2*(end - start)];
+                    line.getChars(start, end, histoToken, 0);
+                    histoToken[end - start] = ',';
+                    histoBuffer.write(histoToken, 0, end - start + 1);
+                }
+            }
+            catch(IOException|NullPointerException e){
+                try{
+                    logBuffer.write("Problem while writting to history file : did you specify one?\n");
+                    logBuffer.flush();
+                }
+                catch(IOException e2){
+                    printStream.println("I/O Exceptions while writting to output & log files");
+                }
+            }
+            start = end;
+        }
+        endFrame();
+        return true;
+    }
+
+    /*
+     * In framed mode, terminate the replies to the current line with its number,
+     * so that a pipelining client can match replies with the lines it sent without reading their content.
+     * The frame command itself is answered with "=0".
+     */
+    private void endFrame()
+    {
+        if(framed)
+        {
+            printStream.println("="+sequence);
+            sequence++;
+        }
+    }
 }
@@ -0,0 +1,247 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/*
+ * Remote calculator server multiplexing all the sessions over a few selector threads,
+ * instead of starting one CalcRPL thread per client blocked on readLine().
+ * The text protocol is the same as the one of CalcRPL in socket mode, so TCPClient can be used as is.
+ */
+public class CalcRPLServerNIO {
+
+    final static int READSIZE = 8192;
+    // A client sending a longer line is disconnected
+    final static int MAXLINE = 8192;
+    // No more lines are read from a client while that many bytes of replies are waiting for it
+    final static int MAXQUEUED = 64*1024;
+
+    int serverPort;
+    HistorySink sink;
+    int stackSize;
+    int mode;
+    SelectorThread selectors[];
+
+    public CalcRPLServerNIO( int serverPort, int nbSelectors, HistorySink sink, int stackSize, int mode ) {
+        this.serverPort = serverPort;
+        this.sink = sink;
+        this.stackSize = stackSize;
+        this.mode = mode;
+        this.selectors = new SelectorThread[nbSelectors];
+    }
+
+    /*
+     * Accept connections and hand them over to the selector threads, in turn.
+     */
+    public void serve() throws IOException {
+        ServerSocketChannel receiver = ServerSocketChannel.open();
+        SocketChannel channel;
+        int next = 0;
+
+        receiver.bind( new InetSocketAddress( serverPort ) );
+        for(int i = 0; i < selectors.length; i++)
+            selectors[i] = new SelectorThread();
+
+        while( true ) {
+            channel = receiver.accept();
+            selectors[next].register( channel );
+            next = (next + 1) % selectors.length;
+        }
+    }
+
+    /*
+     * State kept for each connected client: its own calculator and stack,
+     * the bytes of the line being received, and the replies not yet written to the socket.
+     */
+    class Session {
+        SocketChannel channel;
+        ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+        ByteArrayOutputStream replyBuffer = new ByteArrayOutputStream();
+        ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+        int queued = 0;
+        CalcRPL calc;
+        PileRPL stack;
+        boolean closing = false;
+        boolean dropped = false;
+
+        Session( SocketChannel channel ) {
+            PrintStream printStream = new PrintStream( replyBuffer );
+            int session = sink.nextSession();
+            Writer logWriter = sink.writerFor( session, false );
+            Writer histoWriter = sink.hasHistory() ? sink.writerFor( session, true ) : null;
+            this.channel = channel;
+            this.calc = new CalcRPL( logWriter, histoWriter, stackSize, mode, null, printStream );
+            this.stack = new PileRPL( stackSize, mode, logWriter, printStream );
+        }
+
+        /*
+         * Split received bytes into lines, and process each complete line with the calculator.
+         * A line longer than MAXLINE drops the client.
+         */
+        void received( ByteBuffer bytes ) {
+            byte b;
+            String line;
+
+            while( bytes.hasRemaining() && !closing ) {
+                b = bytes.get();
+                if( b != '\n' ) {
+                    if( lineBuffer.size() >= MAXLINE ) {
+                        System.out.println( "Client sends a line longer than " + MAXLINE + " bytes: disconnected" );
+                        dropped = true;
+                        return;
+                    }
+                    lineBuffer.write( b );
+                    continue;
+                }
+                line = lineBuffer.toString();
+                lineBuffer.reset();
+                if( line.endsWith( "\r" ) )
+                    line = line.substring( 0, line.length()-1 );
+                if( !calc.processLine( line, stack ) )
+                    closing = true;
+            }
+            queueReplies();
+        }
+
+        /*
+         * Move whatever the calculator printed to the write queue.
+         */
+        void queueReplies() {
+            if( replyBuffer.size() > 0 ) {
+                writeQueue.add( ByteBuffer.wrap( replyBuffer.toByteArray() ) );
+                queued += replyBuffer.size();
+                replyBuffer.reset();
+            }
+        }
+    }
+
+    /*
+     * Thread owning one selector, and serving all the sessions registered on it.
+     */
+    class SelectorThread extends Thread {
+        Selector selector;
+        ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect( READSIZE );
+
+        SelectorThread() throws IOException {
+            this.selector = Selector.open();
+            this.setDaemon( true );
+            this.start();
+        }
+
+        /*
+         * Called from the accepting thread: the channel is registered by the selector thread itself.
+         */
+        void register( SocketChannel channel ) {
+            pending.add( channel );
+            selector.wakeup();
+        }
+
+        public void run() {
+            Iterator<SelectionKey> keys;
+            SelectionKey key;
+
+            while( true ) {
+                try {
+                    selector.select();
+                    registerPending();
+                    keys = selector.selectedKeys().iterator();
+                    while( keys.hasNext() ) {
+                        key = keys.next();
+                        keys.remove();
+                        try {
+                            if( key.isValid() && key.isReadable() )
+                                read( key );
+                            if( key.isValid() && key.isWritable() )
+                                write( key );
+                        } catch( IOException e ) {
+                            close( key );
+                        }
+                    }
+                } catch( IOException e ) {
+                    System.out.println( "IO exception during select" );
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            Session session;
+            SelectionKey key;
+
+            while( (channel = pending.poll()) != null ) {
+                try {
+                    channel.configureBlocking( false );
+                    session = new Session( channel );
+                    key = channel.register( selector, SelectionKey.OP_READ, session );
+                    session.calc.printPrompt();
+                    session.queueReplies();
+                    write( key );
+                } catch( IOException e ) {
+                    try {
+                        channel.close();
+                    } catch( IOException e2 ) {
+                        System.out.println( "problem while closing socket" );
+                    }
+                }
+            }
+        }
+
+        private void read( SelectionKey key ) throws IOException {
+            Session session = (Session)key.attachment();
+
+            readBuffer.clear();
+            if( session.channel.read( readBuffer ) < 0 ) {
+                close( key );
+                return;
+            }
+            readBuffer.flip();
+            session.received( readBuffer );
+            if( session.dropped ) {
+                close( key );
+                return;
+            }
+            write( key );
+        }
+
+        /*
+         * Write as much of the queued replies as the socket accepts,
+         * and only ask for OP_WRITE while something is left.
+         * A client letting more than MAXQUEUED bytes pile up is not read until it catches up.
+         */
+        private void write( SelectionKey key ) throws IOException {
+            Session session = (Session)key.attachment();
+            ByteBuffer bytes;
+
+            while( (bytes = session.writeQueue.peek()) != null ) {
+                session.channel.write( bytes );
+                if( bytes.hasRemaining() )
+                    break;
+                session.writeQueue.poll();
+                session.queued -= bytes.capacity();
+            }
+
+            if( session.writeQueue.isEmpty() ) {
+                if( session.closing )
+                    close( key );
+                else
+                    key.interestOps( SelectionKey.OP_READ );
+            }
+            else if( session.queued > MAXQUEUED )
+                key.interestOps( SelectionKey.OP_WRITE );
+            else
+                key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+        }
+
+        private void close( SelectionKey key ) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch( IOException e ) {
+                System.out.println( "problem while closing socket" );
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/*
+ * Single writer for the history and log files, shared by all the sessions of the remote calculator.
+ * Sessions only push records into a lock-free queue; a dedicated thread drains it and commits
+ * whole batches to disk, either every flush interval or as soon as enough records are pending.
+ *
+ * Each record is tagged with its session id:
+ *  - history lines look like "#<session> 15,78,+,", so that one session can be replayed with CalcRPL -r <file> -u <session>,
+ *  - log lines are prefixed with "[<session>] ".
+ */
+public class HistorySink extends Thread {
+
+    /*
+     * One write from one session.
+     */
+    static class Record {
+        int session;
+        boolean history;
+        String text;
+
+        Record( int session, boolean history, String text ) {
+            this.session = session;
+            this.history = history;
+            this.text = text;
+        }
+    }
+
+    private ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<Record>();
+    private AtomicInteger nextSession = new AtomicInteger( 0 );
+    private AtomicLong enqueued = new AtomicLong( 0 );
+    private volatile long committed = 0;
+    private volatile boolean running = true;
+
+    private Writer logWriter;
+    private Writer histoWriter;
+    private long flushInterval;
+    private int flushSize;
+    // Session of the history line being written, -1 when no line is open
+    private int histoSession = -1;
+
+    /*
+     * histoWriter may be null when no history file has been specified.
+     * flushInterval is in milliseconds, flushSize is a number of pending records.
+     */
+    public HistorySink( Writer logWriter, Writer histoWriter, long flushInterval, int flushSize ) {
+        this.logWriter = logWriter;
+        this.histoWriter = histoWriter;
+        this.flushInterval = flushInterval;
+        this.flushSize = flushSize;
+        this.setDaemon( true );
+        this.start();
+    }
+
+    public int nextSession() {
+        return nextSession.incrementAndGet();
+    }
+
+    public boolean hasHistory() {
+        return histoWriter != null;
+    }
+
+    /*
+     * Writer to give to a session, in place of the shared log or history BufferedWriter.
+     */
+    public Writer writerFor( int session, boolean history ) {
+        return new SessionWriter( session, history );
+    }
+
+    private void add( Record record ) {
+        queue.add( record );
+        if( enqueued.incrementAndGet() - committed >= flushSize )
+            LockSupport.unpark( this );
+    }
+
+    /*
+     * Wait until every record queued so far has been written and flushed.
+     */
+    private void commitAndWait() {
+        long target = enqueued.get();
+
+        while( committed < target && this.isAlive() ) {
+            LockSupport.unpark( this );
+            LockSupport.parkNanos( 1000000 );
+        }
+    }
+
+    public void run() {
+        while( running ) {
+            LockSupport.parkNanos( flushInterval * 1000000 );
+            commit();
+        }
+        commit();
+    }
+
+    /*
+     * Write all the pending records, then flush each file once for the whole batch.
+     */
+    private void commit() {
+        Record record;
+        long count = 0;
+
+        try {
+            while( (record = queue.poll()) != null ) {
+                count++;
+                if( record.history ) {
+                    if( histoWriter == null )
+                        continue;
+                    if( record.session != histoSession ) {
+                        if( histoSession != -1 )
+                            histoWriter.write( "\n" );
+                        histoWriter.write( "#" + record.session + " " );
+                        histoSession = record.session;
+                    }
+                    histoWriter.write( record.text );
+                }
+                else
+                    logWriter.write( "[" + record.session + "] " + record.text );
+            }
+            if( count > 0 ) {
+                if( histoWriter != null )
+                    histoWriter.flush();
+                logWriter.flush();
+            }
+        } catch( IOException e ) {
+            System.out.println( "I/O exception while writting history & log files" );
+        }
+        committed += count;
+    }
+
+    /*
+     * Stop the writer thread once everything queued has been committed.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark( this );
+        try {
+            this.join();
+        } catch( InterruptedException e ) {
+            System.out.println( "Interrupted while closing history" );
+        }
+    }
+
+    /*
+     * Writer used by one session: each write becomes one record.
+     * Flushing the log only asks for an early commit, while flushing the history (save command)
+     * waits for the records to be on disk.
+     */
+    class SessionWriter extends Writer {
+        int session;
+        boolean history;
+
+        SessionWriter( int session, boolean history ) {
+            this.session = session;
+            this.history = history;
+        }
+
+        public void write( char[] cbuf, int off, int len ) {
+            add( new Record( session, history, new String( cbuf, off, len ) ) );
+        }
+
+        public void write( String str ) {
+            add( new Record( session, history, str ) );
+        }
+
+        public void write( String str, int off, int len ) {
+            add( new Record( session, history, str.substring( off, off+len ) ) );
+        }
+
+        public void flush() {
+            if( history )
+                commitAndWait();
+            else
+                LockSupport.unpark( HistorySink.this );
+        }
+
+        public void close() {
+            flush();
+        }
+    }
+}
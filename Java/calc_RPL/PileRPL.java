@@ -1,191 +1,430 @@
 import java.io.*;
+import java.math.BigInteger;
 
+/*
+ * Stack of the RPL calculator.
+ * Each session owns its own instance, which is only used by the thread serving that session:
+ * no state is shared between instances, so sessions can run in parallel without any lock.
+ *
+ * Values are computed according to the numeric mode of the stack:
+ *  - MODE_INT wraps around on 32 bits, as the calculator always did,
+ *  - MODE_LONG computes on 64 bits and refuses operations that would overflow,
+ *  - MODE_BIG computes on 64 bits too, and only switches to BigInteger for the values that do not fit.
+ */
 public class PileRPL{
-    private ObjEmp objTab[];
-    private static int nbObj;
-    // The buffered writer used for log mechanism: logs will either be displayed in std output, or in a file
-    private BufferedWriter writer;
+    public final static int MODE_INT = 0;
+    public final static int MODE_LONG = 1;
+    public final static int MODE_BIG = 2;
+
+    // Values of the stack, kept as primitives so that operations do not allocate
+    private long valeurs[];
+    // Values too large for a long, only allocated in MODE_BIG: null where the long value is used
+    private BigInteger grands[];
+    // Number of values held in grands, so that the fast path only checks it while it is 0
+    private int nbGrands;
+    private int nbObj;
+    private int mode;
+    // The writer used for log mechanism: logs will either be displayed in std output, or in a file
+    private Writer writer;
     // The output where the RPL pile will be displayed : std output or remotely
     private PrintStream printStream;
+    // Reused to display the stack after each token, without allocating
+    private StringBuilder display = new StringBuilder(64);
+    private byte displayBytes[] = new byte[64];
+    private final static String LINE = System.lineSeparator();
 
     public PileRPL(){
-        new PileRPL(3);
+        this(3);
     }
 
     public PileRPL(int taille){
-        this.objTab = new ObjEmp[taille];
-        this.nbObj = 0;
-        this.writer = new BufferedWriter(new OutputStreamWriter(System.out));
-        this.printStream = new PrintStream(System.out);
+        this(taille, MODE_INT, new BufferedWriter(new OutputStreamWriter(System.out)), new PrintStream(System.out));
     }
 
-    public PileRPL(BufferedWriter writer){
-        new PileRPL(3);
-        this.writer = writer;
+    public PileRPL(Writer writer){
+        this(3, writer, new PrintStream(System.out));
+    }
+
+    public PileRPL(int taille, Writer writer, PrintStream printStream){
+        this(taille, MODE_INT, writer, printStream);
     }
 
-    public PileRPL(int taille, BufferedWriter writer, PrintStream printStream){
-        this.objTab = new ObjEmp[taille];
+    public PileRPL(int taille, int mode, Writer writer, PrintStream printStream){
+        this.valeurs = new long[taille];
+        if(mode == MODE_BIG)
+            this.grands = new BigInteger[taille];
+        this.nbGrands = 0;
         this.nbObj = 0;
+        this.mode = mode;
         this.writer = writer;
         this.printStream = printStream;
     }
 
+    public int getMode(){
+        return this.mode;
+    }
+
     /*
-     * Pop 2 objects and add the first to the second one.
-     * Push modified object.
+     * Pop 2 values and add the first to the second one.
+     * Push the result.
      */
     public void addition(){
-        ObjEmp obj1 = this.depile();
-        ObjEmp obj2 = this.depile();
-        try{ 
-            obj2.addition(obj1);
-            this.empile(obj2);
+        if(!fastPath())
+        {
+            operate('+', "add");
+            return;
         }
-        catch(NullPointerException nullPE){
-            try{
-                writer.write("Impossible to add : either obj1="+obj1+" or obj2="+obj2+ " is null\n");
-                writer.flush();
-            }
-            catch(IOException e){
-                printStream.println("I/O exception!!!");
-            }
-            if(obj2 != null)
-                this.empile(obj2);
-            if(obj1 != null)
-                this.empile(obj1);
+        if(this.mode == MODE_INT)
+        {
+            replaceTop((int)(this.valeurs[this.nbObj-2] + this.valeurs[this.nbObj-1]));
+            return;
+        }
+        try
+        {
+            replaceTop(Math.addExact(this.valeurs[this.nbObj-2], this.valeurs[this.nbObj-1]));
+        }
+        catch(ArithmeticException e){
+            operate('+', "add");
         }
     }
 
     /*
-     * Pop 2 objects and substract the first to the second one.
-     * Push modified object.
+     * Pop 2 values and substract the first to the second one.
+     * Push the result.
      */
     public void soustraction(){
-        ObjEmp obj1 = this.depile();
-        ObjEmp obj2 = this.depile();
-        try{ 
-            obj2.soustraction(obj1);
-            this.empile(obj2);
+        if(!fastPath())
+        {
+            operate('-', "substract");
+            return;
         }
-        catch(NullPointerException nullPE){
-            try{
-                writer.write("Impossible to substract : either obj1="+obj1+" or obj2="+obj2+ " is null\n");
-                writer.flush();
-            }
-            catch(IOException e){
-                printStream.println("I/O exception!!!");
-            }
-            if(obj2 != null)
-                this.empile(obj2);
-            if(obj1 != null)
-                this.empile(obj1);
+        if(this.mode == MODE_INT)
+        {
+            replaceTop((int)(this.valeurs[this.nbObj-2] - this.valeurs[this.nbObj-1]));
+            return;
+        }
+        try
+        {
+            replaceTop(Math.subtractExact(this.valeurs[this.nbObj-2], this.valeurs[this.nbObj-1]));
+        }
+        catch(ArithmeticException e){
+            operate('-', "substract");
         }
     }
 
     /*
-     * Pop 2 objects and divide the first one by the second one.
-     * Push modified object.
+     * Pop 2 values and divide the second one by the first one.
+     * Push the result.
      */
     public void division(){
-        ObjEmp obj1 = this.depile();
-        ObjEmp obj2 = this.depile();
-        try{
-            obj2.division(obj1);
-            this.empile(obj2);
+        long obj1;
+
+        if(!fastPath() || (obj1 = this.valeurs[this.nbObj-1]) == 0 || obj1 == -1)
+        {
+            operate('/', "divide");
+            return;
         }
-        catch(NullPointerException nullPE){
-            try{
-                writer.write("Impossible to divide : either obj1="+obj1+" or obj2="+obj2+ " is null\n");
-                writer.flush();
-            }
-            catch(IOException e){
-                printStream.println("I/O exception!!!");
+        replaceTop(this.valeurs[this.nbObj-2] / obj1);
+    }
+
+    /*
+     * Pop 2 values and multiply the second one with the first one.
+     * Push the result.
+     */
+    public void multiplication(){
+        if(!fastPath())
+        {
+            operate('*', "multiply");
+            return;
+        }
+        if(this.mode == MODE_INT)
+        {
+            replaceTop((int)(this.valeurs[this.nbObj-2] * this.valeurs[this.nbObj-1]));
+            return;
+        }
+        try
+        {
+            replaceTop(Math.multiplyExact(this.valeurs[this.nbObj-2], this.valeurs[this.nbObj-1]));
+        }
+        catch(ArithmeticException e){
+            operate('*', "multiply");
+        }
+    }
+
+    /*
+     * The fast path applies when both operands are there and stored as primitives.
+     */
+    private boolean fastPath(){
+        return this.nbObj >= 2 && this.nbGrands == 0;
+    }
+
+    private void replaceTop(long result){
+        this.nbObj--;
+        this.valeurs[this.nbObj-1] = result;
+    }
+
+    /*
+     * Slow path of the operators: apply the operator to the 2 values on top of the stack,
+     * and replace them with the result.
+     * Both values stay on the stack when the operation is not possible.
+     */
+    private void operate(char operator, String operation){
+        long obj1, obj2, result;
+
+        if(!operandsAvailable(operation))
+            return;
+        if(operator == '/' && !isBig(this.nbObj-1) && this.valeurs[this.nbObj-1] == 0)
+        {
+            log("Impossible to divide : obj1=0 is 0\n");
+            return;
+        }
+        if(isBig(this.nbObj-1) || isBig(this.nbObj-2))
+        {
+            operateBig(operator);
+            return;
+        }
+
+        obj1 = this.valeurs[this.nbObj-1];
+        obj2 = this.valeurs[this.nbObj-2];
+        if(this.mode == MODE_INT)
+        {
+            // Operands are ints, so the long result is exact and its low 32 bits are the int result.
+            switch(operator)
+            {
+                case '+': result = (int)(obj2 + obj1); break;
+                case '-': result = (int)(obj2 - obj1); break;
+                case '*': result = (int)(obj2 * obj1); break;
+                default: result = (int)(obj2 / obj1); break;
             }
-            if(obj2 != null)
-                this.empile(obj2);
-            if(obj1 != null)
-                this.empile(obj1);
         }
-        catch(ArithmeticException zeroE){
-            try{
-                writer.write("Impossible to divide : obj1="+obj1+ " is 0\n");
-                writer.flush();
+        else
+        {
+            try
+            {
+                switch(operator)
+                {
+                    case '+': result = Math.addExact(obj2, obj1); break;
+                    case '-': result = Math.subtractExact(obj2, obj1); break;
+                    case '*': result = Math.multiplyExact(obj2, obj1); break;
+                    default:
+                        if(obj2 == Long.MIN_VALUE && obj1 == -1)
+                            throw new ArithmeticException("long overflow");
+                        result = obj2 / obj1;
+                        break;
+                }
             }
-            catch(IOException e){
-                printStream.println("I/O exception!!!");
+            catch(ArithmeticException e){
+                if(this.mode == MODE_LONG)
+                {
+                    log("Impossible to "+operation+" : obj2="+obj2+" and obj1="+obj1+" overflow a long\n");
+                    return;
+                }
+                operateBig(operator);
+                return;
             }
-            this.empile(obj2);
-            this.empile(obj1);
         }
+        replaceTop(result);
     }
 
     /*
-     * Pop 2 objects and multiply the second one with the first one.
-     * Push modified object.
+     * Slow path of MODE_BIG, when an operand or the result does not fit in a long.
      */
-    public void multiplication(){
-        ObjEmp obj1 = this.depile();
-        ObjEmp obj2 = this.depile();
-        try{ 
-            obj2.multiplication(obj1);
-            this.empile(obj2);
+    private void operateBig(char operator){
+        BigInteger obj1 = bigValue(this.nbObj-1);
+        BigInteger obj2 = bigValue(this.nbObj-2);
+        BigInteger result;
+
+        switch(operator)
+        {
+            case '+': result = obj2.add(obj1); break;
+            case '-': result = obj2.subtract(obj1); break;
+            case '*': result = obj2.multiply(obj1); break;
+            default: result = obj2.divide(obj1); break;
         }
-        catch(NullPointerException nullPE){
-            try{
-                writer.write("Impossible to multiply : either obj1="+obj1+" or obj2="+obj2+ " is null\n");
-                writer.flush();
-            }
-            catch(IOException e){
-                printStream.println("I/O exception!!!");
-            }
-            if(obj2 != null)
-                this.empile(obj2);
-            if(obj1 != null)
-                this.empile(obj1);
+        setGrand(this.nbObj-1, null);
+        this.nbObj--;
+        store(this.nbObj-1, result);
+    }
+
+    private boolean isBig(int i){
+        return this.nbGrands != 0 && this.grands[i] != null;
+    }
+
+    private BigInteger bigValue(int i){
+        return isBig(i) ? this.grands[i] : BigInteger.valueOf(this.valeurs[i]);
+    }
+
+    private String valueString(int i){
+        return isBig(i) ? this.grands[i].toString() : Long.toString(this.valeurs[i]);
+    }
+
+    /*
+     * Store a BigInteger result, going back to the long representation whenever it fits.
+     */
+    private void store(int i, BigInteger value){
+        if(value.bitLength() < 64)
+        {
+            this.valeurs[i] = value.longValue();
+            setGrand(i, null);
+        }
+        else
+            setGrand(i, value);
+    }
+
+    private void setGrand(int i, BigInteger value){
+        if(this.grands[i] != null)
+            this.nbGrands--;
+        if(value != null)
+            this.nbGrands++;
+        this.grands[i] = value;
+    }
+
+    /*
+     * Check that 2 values can be popped for the given operation.
+     * If not, report it the same way as when popping from an empty stack, and leave the stack unchanged.
+     */
+    private boolean operandsAvailable(String operation){
+        String obj1 = "null", obj2 = "null";
+
+        if(this.nbObj >= 2)
+            return true;
+        if(this.nbObj == 1)
+            obj1 = valueString(0);
+        for(int i = this.nbObj; i < 2; i++)
+        {
+            printStream.println("Stack is empty, please provide some integers to operate on.");
+            log("Stack is empty, please provide some integers to operate on.\n");
         }
-    } 
+        log("Impossible to "+operation+" : either obj1="+obj1+" or obj2="+obj2+ " is null\n");
+        return false;
+    }
 
     /*
      * Method to add a new object to the stack.
      */
     public void empile(ObjEmp obj){
-        try{
-            this.objTab[this.nbObj] = obj;
-            this.nbObj++;
+        this.empile(obj.getValeur());
+    }
+
+    /*
+     * Method to add a new value to the stack, without allocating any object.
+     */
+    public void empile(int valeur){
+        this.empile((long)valeur);
+    }
+
+    public void empile(long valeur){
+        if(isFull())
+            return;
+        this.valeurs[this.nbObj] = valeur;
+        if(this.nbGrands != 0)
+            setGrand(this.nbObj, null);
+        this.nbObj++;
+    }
+
+    /*
+     * Method to add a value too large for a long, only accepted in MODE_BIG.
+     */
+    public void empile(BigInteger valeur){
+        if(this.mode != MODE_BIG)
+        {
+            log("Impossible to push "+valeur+" : out of range\n");
+            return;
         }
-        catch(ArrayIndexOutOfBoundsException arrayOOBE){
-            printStream.println("Stack is full, please use operators to free some space.");
-            try{
-                writer.write("Stack is full, please use operators to free some space.\n");
-                writer.flush();
-            }
-            catch(IOException e){
-                printStream.println("I/O exception!!!");
+        if(isFull())
+            return;
+        store(this.nbObj, valeur);
+        this.nbObj++;
+    }
+
+    /*
+     * Parse the operand found between start and end in the line, and add it to the stack.
+     * Plain decimal values short enough to fit in a long are parsed in place, without allocating;
+     * any other token goes through empile(String), which also throws the NumberFormatException.
+     */
+    public void empile(String line, int start, int end) throws NumberFormatException {
+        long value = 0;
+        int i = start;
+        boolean negative = false;
+        char c;
+
+        if(line.charAt(i) == '-' || line.charAt(i) == '+')
+        {
+            negative = line.charAt(i) == '-';
+            i++;
+        }
+        // Up to 18 digits always fit in a long
+        if(i == end || end - i > 18)
+        {
+            this.empile(line.substring(start, end));
+            return;
+        }
+        for(; i < end; i++)
+        {
+            c = line.charAt(i);
+            if(c < '0' || c > '9')
+            {
+                this.empile(line.substring(start, end));
+                return;
             }
+            value = value*10 + (c - '0');
+        }
+        if(negative)
+            value = -value;
+        if(this.mode == MODE_INT && (int)value != value)
+        {
+            this.empile(line.substring(start, end));
+            return;
+        }
+        this.empile(value);
+    }
+
+    /*
+     * Parse an operand according to the numeric mode, and add it to the stack.
+     * Throws NumberFormatException when the token is not an integer of the mode.
+     */
+    public void empile(String token) throws NumberFormatException {
+        switch(this.mode)
+        {
+            case MODE_INT:
+                this.empile(Integer.parseInt(token));
+                break;
+            case MODE_LONG:
+                this.empile(Long.parseLong(token));
+                break;
+            default:
+                try
+                {
+                    this.empile(Long.parseLong(token));
+                }
+                catch(NumberFormatException numE){
+                    this.empile(new BigInteger(token));
+                }
+                break;
         }
     }
 
+    private boolean isFull(){
+        if(this.nbObj == this.valeurs.length)
+        {
+            printStream.println("Stack is full, please use operators to free some space.");
+            log("Stack is full, please use operators to free some space.\n");
+            return true;
+        }
+        return false;
+    }
+
     /*
-     * Method to pop an object from the stack.
+     * Write a message to the log writer, and flush it.
      */
-    private ObjEmp depile(){
-        ObjEmp obj = null;
+    private void log(String message){
         try{
-            obj = this.objTab[this.nbObj-1];
-            this.nbObj--;
+            writer.write(message);
+            writer.flush();
         }
-        catch(ArrayIndexOutOfBoundsException arrayOOBE){
-            printStream.println("Stack is empty, please provide some integers to operate on.");
-            try{
-                writer.write("Stack is empty, please provide some integers to operate on.\n");
-                writer.flush();
-            }
-            catch(IOException e){
-                printStream.println("I/O exception!!!");
-            }
+        catch(IOException e){
+            printStream.println("I/O exception!!!");
         }
-        return obj; 
     }
 
     /*
@@ -201,7 +440,7 @@ public class PileRPL{
                 printStream.println("I/O exception!!!");
             }
         }
-        if(this.nbObj == this.objTab.length)
+        if(this.nbObj == this.valeurs.length)
         {
             try{
                 writer.write("Stack is full!\n",0,15);
@@ -218,14 +457,39 @@ public class PileRPL{
      * Method to convert the stack into a string, to display it easily.
      */
     public String toString(){
-        String pileString = "";
+        render();
+        return display.toString();
+    }
+
+    /*
+     * Print the stack to the output, as println(toString()) does, but without allocating:
+     * the display only holds ASCII characters, which are written as bytes.
+     */
+    public void print(PrintStream out){
+        int length;
+
+        render();
+        display.append(LINE);
+        length = display.length();
+        if(displayBytes.length < length)
+            displayBytes = new byte[Math.max(length, 2*displayBytes.length)];
+        for(int i = 0; i < length; i++)
+            displayBytes[i] = (byte)display.charAt(i);
+        out.write(displayBytes, 0, length);
+    }
 
+    private void render(){
+        display.setLength(0);
         for(int i = 0; i < this.nbObj; i++)
         {
-            pileString += i + ": " + this.objTab[i].toString() + "\n";
+            display.append(i).append(": ");
+            if(isBig(i))
+                display.append(this.grands[i]);
+            else
+                display.append(this.valeurs[i]);
+            display.append('\n');
         }
-        pileString += "End of Stack";
-        return pileString;
+        display.append("End of Stack");
     }
 }
 
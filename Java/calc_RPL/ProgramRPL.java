@@ -0,0 +1,206 @@
+import java.io.*;
+import java.math.BigInteger;
+import java.util.*;
+
+/*
+ * Sequence of operands and operators compiled once into a compact array of opcodes,
+ * so that input or history files can be replayed without tokenizing and comparing strings for each token.
+ */
+public class ProgramRPL{
+    final static int OP_PUSH = 0;
+    final static int OP_ADD = 1;
+    final static int OP_SUB = 2;
+    final static int OP_MUL = 3;
+    final static int OP_DIV = 4;
+    final static int OP_PUSH_LONG = 5;
+    final static int OP_PUSH_BIG = 6;
+
+    // Opcodes, each OP_PUSH being followed by the value to push,
+    // each OP_PUSH_LONG by the high then low 32 bits of the value,
+    // and each OP_PUSH_BIG by the index of the value in constants
+    private int code[];
+    private ArrayList<BigInteger> constants;
+    private int size;
+    private int nbTokens;
+    private int nbIgnored;
+
+    private ProgramRPL(){
+        this.code = new int[1024];
+        this.constants = new ArrayList<BigInteger>();
+        this.size = 0;
+        this.nbTokens = 0;
+        this.nbIgnored = 0;
+    }
+
+    public int getNbTokens(){
+        return this.nbTokens;
+    }
+
+    public int getNbIgnored(){
+        return this.nbIgnored;
+    }
+
+    /*
+     * Read the whole input and compile it, with the same rules as CalcRPL.readAndCalculate:
+     * a line "exit" ends the sequence, a line "save" is skipped, and tokens are split on " ,;:_|".
+     * Tokens that are neither operators nor integers of the numeric mode of the stack are ignored.
+     * Lines of a remote calculator history start with a "#<session> " tag: it is skipped,
+     * and when session is not null, only the lines of this session are compiled.
+     */
+    public static ProgramRPL compile(BufferedReader inBuffer, String session, int mode) throws IOException {
+        ProgramRPL program = new ProgramRPL();
+        String line;
+        int start, end, length;
+
+        while((line = inBuffer.readLine()) != null)
+        {
+            if(line.equals("exit"))
+                break;
+            if(line.equals("save"))
+                continue;
+            length = line.length();
+            start = 0;
+            if(line.startsWith("#"))
+            {
+                start = line.indexOf(' ');
+                if(start < 0)
+                    continue;
+                if(session != null && !line.substring(1, start).equals(session))
+                    continue;
+            }
+            else if(session != null)
+                continue;
+            while(start < length)
+            {
+                while(start < length && isDelimiter(line.charAt(start)))
+                    start++;
+                end = start;
+                while(end < length && !isDelimiter(line.charAt(end)))
+                    end++;
+                if(end > start)
+                    program.addToken(line, start, end, mode);
+                start = end;
+            }
+        }
+        return program;
+    }
+
+    static boolean isDelimiter(char c){
+        return c == ' ' || c == ',' || c == ';' || c == ':' || c == '_' || c == '|';
+    }
+
+    /*
+     * Compile the token found between start and end in the line.
+     */
+    private void addToken(String line, int start, int end, int mode){
+        long value = 0;
+        long limit, multmin;
+        int i = start;
+        int digit;
+        boolean negative = false;
+        boolean overflow = false;
+
+        if(end - start == 1)
+        {
+            switch(line.charAt(start))
+            {
+                case '+': add(OP_ADD); return;
+                case '-': add(OP_SUB); return;
+                case '*': add(OP_MUL); return;
+                case '/': add(OP_DIV); return;
+            }
+        }
+
+        // Parse the integer in place, accepting the same values as Long.parseLong.
+        // It is accumulated negatively, since Long.MIN_VALUE has no positive counterpart.
+        if(line.charAt(i) == '-' || line.charAt(i) == '+')
+        {
+            negative = line.charAt(i) == '-';
+            i++;
+        }
+        if(i == end)
+        {
+            this.nbIgnored++;
+            return;
+        }
+        limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        multmin = limit / 10;
+        for(; i < end; i++)
+        {
+            char c = line.charAt(i);
+            if(c < '0' || c > '9')
+            {
+                this.nbIgnored++;
+                return;
+            }
+            digit = c - '0';
+            if(value < multmin || value*10 < limit + digit)
+                overflow = true;
+            else
+                value = value*10 - digit;
+        }
+        if(!negative)
+            value = -value;
+
+        if(overflow || (mode == PileRPL.MODE_INT && (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)))
+        {
+            if(!overflow || mode != PileRPL.MODE_BIG)
+            {
+                this.nbIgnored++;
+                return;
+            }
+            add(OP_PUSH_BIG);
+            this.code[this.size++] = this.constants.size();
+            this.constants.add(new BigInteger(line.substring(start, end)));
+        }
+        else if(value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+        {
+            add(OP_PUSH);
+            this.code[this.size++] = (int)value;
+        }
+        else
+        {
+            add(OP_PUSH_LONG);
+            this.code[this.size++] = (int)(value >>> 32);
+            this.code[this.size++] = (int)value;
+        }
+    }
+
+    private void add(int opcode){
+        if(this.size + 3 > this.code.length)
+        {
+            int newCode[] = new int[this.code.length*2];
+            System.arraycopy(this.code, 0, newCode, 0, this.size);
+            this.code = newCode;
+        }
+        this.code[this.size++] = opcode;
+        this.nbTokens++;
+    }
+
+    /*
+     * Run the compiled sequence on the given stack.
+     * The stack is printed after each token only when displayEach is set.
+     */
+    public void execute(PileRPL stack, PrintStream printStream, boolean displayEach){
+        int pc = 0;
+
+        while(pc < this.size)
+        {
+            switch(this.code[pc++])
+            {
+                case OP_PUSH: stack.empile(this.code[pc++]); break;
+                case OP_PUSH_LONG:
+                    stack.empile(((long)this.code[pc] << 32) | (this.code[pc+1] & 0xffffffffL));
+                    pc += 2;
+                    break;
+                case OP_PUSH_BIG: stack.empile(this.constants.get(this.code[pc++])); break;
+                case OP_ADD: stack.addition(); break;
+                case OP_SUB: stack.soustraction(); break;
+                case OP_MUL: stack.multiplication(); break;
+                case OP_DIV: stack.division(); break;
+            }
+            if(displayEach)
+                printStream.println(stack.toString());
+        }
+    }
+}
@@ -0,0 +1,165 @@
+
+import java.net.*;
+import java.io.*;
+import java.util.*;
+
+
+
+/*
+ * Multi-session stress client for the remote calculator.
+ * Starts N concurrent sessions behaving like TCPClient, each one accumulating random integers,
+ * checks every stack sent back against the expected value, and reports throughput and correctness per session.
+ */
+class StressClient extends Thread {
+
+    String serverAddress;
+    int socketPort;
+    int nbOps;
+    int id;
+    long okOps = 0;
+    long errors = 0;
+    long tokens = 0;
+    boolean connected = false;
+
+    public StressClient( int id, String serverAddress, int socketPort, int nbOps ) {
+        this.id = id;
+        this.serverAddress = serverAddress;
+        this.socketPort = socketPort;
+        this.nbOps = nbOps;
+    }
+
+    /*
+     * The stack always holds one accumulator: each line pushes a value then adds it,
+     * so the last stack displayed for the line must only contain the expected sum.
+     */
+    public void run() {
+        Random random = new Random( id );
+        BufferedReader socketInput;
+        PrintStream socketOutput;
+        Socket socket;
+        String socketLine;
+        String lastTop;
+        int expected = 0;
+        int value;
+        int nbStacks;
+
+        try {
+            socket = new Socket( serverAddress, socketPort );
+            socketInput = new BufferedReader( new InputStreamReader( socket.getInputStream() ) );
+            socketOutput = new PrintStream( new BufferedOutputStream( socket.getOutputStream() ) );
+            connected = true;
+
+            // Skip the prompt
+            socketInput.readLine();
+
+            for( int i = 0; i < nbOps; i++ ) {
+                value = random.nextInt( 1000 );
+                if( i == 0 ) {
+                    socketOutput.println( value );
+                    expected = value;
+                    nbStacks = 1;
+                } else {
+                    socketOutput.println( value + " +" );
+                    expected += value;
+                    nbStacks = 2;
+                }
+
+                socketOutput.flush();
+                tokens += nbStacks;
+
+                // Read each displayed stack, and keep the content of the last one.
+                lastTop = null;
+                while( nbStacks > 0 && (socketLine = socketInput.readLine()) != null ) {
+                    if( socketLine.equals( "End of Stack" ) )
+                        nbStacks--;
+                    else if( nbStacks == 1 )
+                        lastTop = (lastTop == null) ? socketLine : lastTop + "|" + socketLine;
+                }
+                if( ("0: " + expected).equals( lastTop ) )
+                    okOps++;
+                else
+                    errors++;
+            }
+            socketOutput.println( "exit" );
+            socketOutput.flush();
+            socket.close();
+        } catch( IOException e ) {
+            System.out.println( "Session " + id + ": I/O exception!!" );
+        }
+    }
+
+	public static void main( String[] args ) {
+		int socketPort = 12345;
+        String serverAddress = "127.0.0.1";
+        int nbClients = 16;
+        int nbOps = 10000;
+        int i;
+        long start, elapsed, totalOps = 0, totalErrors = 0, totalTokens = 0;
+        StressClient clients[];
+
+        if(args.length%2 != 0)
+        {
+            System.out.println("Args error, please use the exe as follows:\n"+
+                                "-s <server_address>: server address, default is 127.0.0.1\n"+
+                                "-p <port_number>   : server port number, default is 12345\n"+
+                                "-c <nb_clients>    : number of concurrent sessions, default is 16\n"+
+                                "-n <nb_lines>      : number of lines sent by each session, default is 10000");
+            return;
+        }
+
+        for(i = 0; i < args.length/2; i++)
+        {
+            try
+            {
+                if(args[2*i].equals("-s"))
+                    serverAddress = args[2*i+1];
+                else if(args[2*i].equals("-p"))
+                    socketPort = Integer.parseInt(args[2*i+1]);
+                else if(args[2*i].equals("-c"))
+                    nbClients = Integer.parseInt(args[2*i+1]);
+                else if(args[2*i].equals("-n"))
+                    nbOps = Integer.parseInt(args[2*i+1]);
+                else
+                {
+                    System.out.println("Args error, please use the exe as follows:\n"+
+                                        "-s <server_address>: server address, default is 127.0.0.1\n"+
+                                        "-p <port_number>   : server port number, default is 12345\n"+
+                                        "-c <nb_clients>    : number of concurrent sessions, default is 16\n"+
+                                        "-n <nb_lines>      : number of lines sent by each session, default is 10000");
+                    return;
+                }
+            }
+            catch(NumberFormatException numE){
+                System.out.println("Please enter an integer after "+args[2*i]);
+                return;
+            }
+        }
+
+        clients = new StressClient[nbClients];
+        start = System.nanoTime();
+        for(i = 0; i < nbClients; i++)
+        {
+            clients[i] = new StressClient( i, serverAddress, socketPort, nbOps );
+            clients[i].start();
+        }
+        try {
+            for(i = 0; i < nbClients; i++)
+                clients[i].join();
+        } catch( InterruptedException e ) {
+            System.out.println( "Interrupted while waiting for sessions" );
+            return;
+        }
+        elapsed = System.nanoTime() - start;
+
+        for(i = 0; i < nbClients; i++)
+        {
+            System.out.println("Session "+i+": "+clients[i].okOps+" ok, "+clients[i].errors+" errors"+
+                                (clients[i].connected ? "" : " (not connected)"));
+            totalOps += clients[i].okOps + clients[i].errors;
+            totalErrors += clients[i].errors;
+            totalTokens += clients[i].tokens;
+        }
+        System.out.println(nbClients+" sessions, "+totalOps+" lines, "+totalErrors+" errors in "+elapsed/1000000+" ms");
+        System.out.println("Throughput: "+(long)(totalTokens*1e9/elapsed)+" ops/s");
+	}
+}
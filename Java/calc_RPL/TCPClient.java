@@ -1,11 +1,75 @@
 import java.net.*;
 import java.io.*;
+import java.util.concurrent.*;
 
 
 
 
 class TCPClient {
 
+    /*
+     * Thread reading the framed replies of a pipelined session, while the main thread keeps sending lines.
+     * The replies to each line end with "=<line_number>": they are printed, and checked against the lines sent in order.
+     */
+    static class ReplyReader extends Thread {
+        BufferedReader socketInput;
+        ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<Integer>();
+        Semaphore window;
+        long nbReplies = 0;
+        long errors = 0;
+
+        // windowSize is the maximum number of unanswered lines, 0 for no limit
+        ReplyReader( BufferedReader socketInput, int windowSize ) {
+            this.socketInput = socketInput;
+            if( windowSize > 0 )
+                this.window = new Semaphore( windowSize );
+        }
+
+        /*
+         * Called by the sending thread before sending a line, to wait while too many lines are unanswered.
+         * What has been sent so far is flushed before waiting, so that the server gets the lines it has to answer.
+         */
+        void sent( int lineNumber, PrintStream socketOutput ) throws InterruptedException {
+            if( window != null && !window.tryAcquire() ) {
+                socketOutput.flush();
+                window.acquire();
+            }
+            pending.add( lineNumber );
+        }
+
+        public void run() {
+            PrintStream output = new PrintStream( new BufferedOutputStream( System.out ) );
+            StringBuilder frame = new StringBuilder();
+            String socketLine;
+            Integer expected;
+
+            try {
+                while( (socketLine = socketInput.readLine()) != null ) {
+                    if( !socketLine.startsWith( "=" ) ) {
+                        frame.append( socketLine ).append( '\n' );
+                        continue;
+                    }
+                    expected = pending.poll();
+                    if( expected == null || !socketLine.equals( "=" + expected ) ) {
+                        output.println( "Reply " + socketLine + " does not match line " + expected );
+                        errors++;
+                    }
+                    output.print( frame );
+                    frame.setLength( 0 );
+                    nbReplies++;
+                    if( window != null )
+                        window.release();
+                }
+            } catch( IOException e ) {
+                output.println( "I/O exception while reading replies!!" );
+            }
+            output.flush();
+            // Do not leave the sending thread waiting for replies that will never come.
+            if( window != null )
+                window.release( pending.size() + 1 );
+        }
+    }
+
 
 	public static void main( String[] args ) {
 		int socketPort = 12345;
@@ -18,13 +82,18 @@ class TCPClient {
         int i;
         String serverAddress = "127.0.0.1";
         InputStream inStream = System.in;
+        int windowSize = -1;
+        ReplyReader replyReader;
+        int lineNumber;
+        long start;
 
         if(args.length%2 != 0)
         {
             System.out.println("Args error, please use the exe as follows:\n"+
                                 "-s <server_address>: server address, default is 127.0.0.1\n"+
                                 "-i <input_file>    : input file, default is stdin\n"+
-                                "-p <port_number>   : server port number, default is 12345");
+                                "-p <port_number>   : server port number, default is 12345\n"+
+                                "-pipe <window>    : stream the input without waiting for replies, at most window lines ahead, 0 for no limit");
             return;
         }
 
@@ -53,6 +122,18 @@ class TCPClient {
                     return;
                 }
             }
+            // Check if the input shall be pipelined
+            else if(args[2*i].equals("-pipe"))
+            {
+                try
+                {
+                    windowSize = Integer.parseInt(args[2*i+1]);
+                }
+                catch(NumberFormatException numE){
+                    System.out.println("Please enter an integer for window size when using -pipe");
+                    return;
+                }
+            }
             // Check if a server address is given
             else if(args[2*i].equals("-s"))
             {
@@ -63,7 +144,8 @@ class TCPClient {
                 System.out.println("Args error, please use the exe as follows:\n"+
                                     "-s <server_address>: server address, default is 127.0.0.1\n"+
                                     "-i <input_file>    : input file, default is stdin\n"+
-                                    "-p <port_number>   : server port, default is 12345");
+                                    "-p <port_number>   : server port, default is 12345\n"+
+                                    "-pipe <window>    : stream the input without waiting for replies, at most window lines ahead, 0 for no limit");
                 return;
             }
         }
@@ -77,6 +159,32 @@ class TCPClient {
             if((socketLine = socketInput.readLine()) != null)
                 System.out.println( socketLine );
 
+            if(windowSize >= 0)
+            {
+                /* Pipelined mode: switch the session to framed replies, then send everything without waiting */
+                socketOutput = new PrintStream( new BufferedOutputStream( socket.getOutputStream() ) );
+                replyReader = new ReplyReader( socketInput, windowSize );
+                replyReader.start();
+                start = System.nanoTime();
+                lineNumber = 0;
+                feedLine = "frame";
+                do
+                {
+                    if(feedLine.equals("exit"))
+                        break;
+                    replyReader.sent( lineNumber++, socketOutput );
+                    socketOutput.println( feedLine );
+                }
+                while( (feedLine = feedInput.readLine()) != null );
+                socketOutput.println( "exit" );
+                socketOutput.flush();
+                replyReader.join();
+                socket.close();
+                System.out.println( (replyReader.nbReplies-1)+" lines answered in "+(System.nanoTime()-start)/1000000+" ms"+
+                                    (replyReader.errors > 0 ? ", "+replyReader.errors+" replies out of order" : "") );
+                return;
+            }
+
             // while there is something to read in the input, read it 
 			while( (feedLine = feedInput.readLine()) != null )
             {
@@ -108,6 +216,8 @@ class TCPClient {
 			System.out.println( "Unknown host" );
 		} catch( IOException e ) {
 			System.out.println( "I/O exception!!" );
+		} catch( InterruptedException e ) {
+			System.out.println( "Interrupted while waiting for replies" );
 		}
 	}
 
@@ -0,0 +1,20 @@
+/*
+ * Where ServiceChat keeps the passwords of the users.
+ * Implementations must accept calls from several connections at once.
+ */
+interface CredentialStore {
+
+    boolean exists(String user);
+
+    /*
+     * Record the password of a new user: false if the user already has one.
+     */
+    boolean register(String user, String password);
+
+    boolean check(String user, String password);
+
+    /*
+     * Move the password of a user to a new name: false if the new name already has one.
+     */
+    boolean rename(String oldName, String newName);
+}
@@ -0,0 +1,183 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/*
+ * Passwords kept as salted PBKDF2 hashes, in a file which survives the restarts of the server.
+ * The file is only appended to, one line per change:
+ *    SET <user> <iterations> <salt> <hash>
+ *    MOVE <old user> <new user>
+ * names, salts and hashes being in Base64. It is read on the first login, into an index in memory.
+ * Logins only take the read lock of the index, and hash outside of it: they run concurrently.
+ * A rename takes the write lock, so that no login sees the user under both names, or under none.
+ */
+class FileCredentialStore implements CredentialStore {
+
+    final static String ALGORITHM = "PBKDF2WithHmacSHA256";
+    final static int ITERATIONS = 10000;
+    final static int SALTSIZE = 16;
+    final static int HASHSIZE = 32;
+
+    private static class Entry {
+        int iterations;
+        byte[] salt;
+        byte[] hash;
+
+        Entry(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+
+    private File file;
+    private volatile ConcurrentHashMap<String, Entry> index;
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+    private OutputStream output;
+    private SecureRandom random = new SecureRandom();
+
+    FileCredentialStore(String fileName) {
+        this.file = new File(fileName);
+    }
+
+    public boolean exists(String user) {
+        return lookup(user) != null;
+    }
+
+    public boolean register(String user, String password) {
+        byte[] salt = new byte[SALTSIZE];
+        random.nextBytes(salt);
+        Entry entry = new Entry(ITERATIONS, salt, hash(password, salt, ITERATIONS));
+
+        lock.readLock().lock();
+        try {
+            if(index().putIfAbsent(user, entry) != null)
+                return false;
+            append("SET " + encode(user) + " " + entry.iterations + " " + encode(entry.salt) + " " + encode(entry.hash));
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean check(String user, String password) {
+        Entry entry = lookup(user);
+        return entry != null && MessageDigest.isEqual(entry.hash, hash(password, entry.salt, entry.iterations));
+    }
+
+    public boolean rename(String oldName, String newName) {
+        lock.writeLock().lock();
+        try {
+            ConcurrentHashMap<String, Entry> index = index();
+            Entry entry = index.get(oldName);
+            if(entry == null || index.containsKey(newName))
+                return false;
+            index.put(newName, entry);
+            index.remove(oldName);
+            append("MOVE " + encode(oldName) + " " + encode(newName));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Entry lookup(String user) {
+        lock.readLock().lock();
+        try {
+            return index().get(user);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * The index, read from the file the first time it is needed.
+     */
+    private ConcurrentHashMap<String, Entry> index() {
+        if(index == null)
+        {
+            synchronized(this)
+            {
+                if(index == null)
+                    index = load();
+            }
+        }
+        return index;
+    }
+
+    private ConcurrentHashMap<String, Entry> load() {
+        ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+        Base64.Decoder decoder = Base64.getDecoder();
+        String line;
+        int nbLines = 0;
+
+        if(file.exists())
+        {
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                while((line = reader.readLine()) != null)
+                {
+                    String[] parts = line.split(" ");
+                    try {
+                        if(parts[0].equals("SET") && parts.length == 5)
+                            entries.put(decode(parts[1]), new Entry(Integer.parseInt(parts[2]), decoder.decode(parts[3]), decoder.decode(parts[4])));
+                        else if(parts[0].equals("MOVE") && parts.length == 3)
+                        {
+                            Entry entry = entries.remove(decode(parts[1]));
+                            if(entry != null)
+                                entries.put(decode(parts[2]), entry);
+                        }
+                        else
+                            System.out.println("Credentials: line " + (nbLines+1) + " ignored");
+                    } catch(IllegalArgumentException e) {
+                        // A line cut by a crash of the server while it was written
+                        System.out.println("Credentials: line " + (nbLines+1) + " ignored");
+                    }
+                    nbLines++;
+                }
+            } catch(IOException e) {
+                System.out.println("Credentials: cannot read " + file + ", " + e.getMessage());
+            }
+        }
+        System.out.println("Credentials: " + entries.size() + " users loaded from " + file);
+        return entries;
+    }
+
+    private synchronized void append(String line) {
+        try {
+            if(output == null)
+                output = new FileOutputStream(file, true);
+            output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            output.flush();
+        } catch(IOException e) {
+            System.out.println("Credentials: cannot write to " + file + ", " + e.getMessage());
+        }
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASHSIZE*8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch(GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static String encode(String text) {
+        return encode(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String encode(byte[] data) {
+        return Base64.getEncoder().encodeToString(data);
+    }
+
+    private static String decode(String text) {
+        return new String(Base64.getDecoder().decode(text), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,30 @@
+import java.util.concurrent.*;
+
+/*
+ * Workers hashing the passwords of the logins: PBKDF2 takes milliseconds per login, which ServiceChat
+ * does not spend on the thread reading its client. At most QUEUESIZE logins wait for a worker.
+ */
+class LoginPool {
+
+    final static int NBWORKERS = Runtime.getRuntime().availableProcessors();
+    final static int QUEUESIZE = 256;
+
+    // Workers only live while logins come in
+    private final static ThreadPoolExecutor executor = new ThreadPoolExecutor( NBWORKERS, NBWORKERS, 1, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>( QUEUESIZE ) );
+    static {
+        executor.allowCoreThreadTimeOut( true );
+    }
+
+    /*
+     * Queue the login, or return false when the queue is full.
+     */
+    static boolean submit( Runnable login ) {
+        try {
+            executor.execute( login );
+            return true;
+        } catch( RejectedExecutionException e ) {
+            return false;
+        }
+    }
+}
@@ -12,6 +12,8 @@ public class ServerChat {
 		try {
             if(args.length > 0)
                 port = Integer.parseInt(args[0]);
+            if(args.length > 1)
+                ServiceChat.credentials = new FileCredentialStore(args[1]);
 			receiver = new ServerSocket( port );
 			System.out.println( "Server uses port "+port );
 			while( true ) {
@@ -1,83 +1,109 @@
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 class ServiceChat extends Thread {
 
-    final static int NBCLIENTSMAX = 3;
 	Socket socket;
 	BufferedReader input;
-	static PrintStream[] outputs = new PrintStream[NBCLIENTSMAX];
-    static int nbClients = 0;
-    static String clientID[] = new String[NBCLIENTSMAX];
+	PrintStream output;
+    // What to close on disconnection: the socket in thread mode, or the connection of ServerChatNIO
+    Closeable connection;
+    // Remote address and port, naming the client until it provides a name
+    String address;
+    // Connected clients, by name (their address until they provide one): no lock is needed to look them up
+    static ConcurrentHashMap<String, ServiceChat> sessions = new ConcurrentHashMap<>();
     String clientName;
-    static HashMap<String, String> credentialsMap = new HashMap<>();
+    // Passwords of the users, replaced by the servers when a file is given on their command line
+    static CredentialStore credentials = new FileCredentialStore("credentials");
     boolean isAuthenticated;
     boolean nameProvided;
+    // The password is being checked by a LoginPool worker
+    boolean loginPending = false;
     boolean pendingTransfer = false;
 
 	public ServiceChat( Socket socket ) {
 		this.socket = socket;
+		this.connection = socket;
+		this.address = socket.getRemoteSocketAddress().toString();
 		this.start();
 	}
 
-    private synchronized int getNbClients(){
-        return nbClients;
+    // Constructor for ServerChatNIO: no thread is started, lines are given by the event loop with received()
+	public ServiceChat( SocketAddress address, OutputStream output, Closeable connection ) {
+		this.connection = connection;
+		this.address = address.toString();
+		connexion( output );
+	}
+
+    void received(String texte){
+        processMessage(texte);
     }
 
-    private synchronized int findMatchingName(String texte){
-        int i;
-        for(i = 0; i < getNbClients(); i++)
-        {
-            if(clientID[i].equals(texte))
-                break;
-        }
-        return i;
+    void closed(){
+        deconnexion();
+    }
+
+    private int getNbClients(){
+        return sessions.size();
+    }
+
+    /*
+     * Register this client under a new name, unless another client already uses it.
+     */
+    private boolean rename(String name){
+        if(sessions.putIfAbsent(name, this) != null)
+            return false;
+        if(clientName != null)
+            sessions.remove(clientName, this);
+        clientName = name;
+        return true;
     }
 
-    private int getClientID(){
-        return findMatchingName(clientName);
+    /*
+     * Register this client under its address until it provides a name,
+     * followed by a number if a user took that address as nickname.
+     */
+    private void renameAnonymous(){
+        String name = address;
+        for(int i = 1; !rename(name); i++)
+            name = address + "#" + i;
     }
 
-    private synchronized void sendMessage(int id, String texte){
-        outputs[id].println(texte);
+    // PrintStream.println is synchronized, so lines sent by several threads to the same client do not mix.
+    private void sendMessage(ServiceChat dest, String texte){
+        dest.output.println(texte);
     }
 
     private void broadcastMessage(String name, String texte){
-        int i;
-        for(i = 0; i < getNbClients(); i++)
+        for(ServiceChat dest : sessions.values())
         {
-            sendMessage(i, name + " " + texte);
+            sendMessage(dest, name + " " + texte);
         }
     }
     
     private void unicastMessage(String userName, String texte){
-        int destIndex = findMatchingName(userName);
-        if(destIndex < getNbClients())
-            sendMessage(destIndex, "FROM " + clientName + "> " + texte );
+        ServiceChat dest = sessions.get(userName);
+        if(dest != null)
+            sendMessage(dest, "FROM " + clientName + "> " + texte );
         else
-        {
-            destIndex = getClientID();
-            sendMessage(destIndex, "Sorry, " + userName + " is not connected to the chat");
-        }
+            sendMessage(this, "Sorry, " + userName + " is not connected to the chat");
     }
     
     private void unicastFileTransfer(String userName, String texte){
-        int destIndex = findMatchingName(userName);
-        if(destIndex < getNbClients())
+        ServiceChat dest = sessions.get(userName);
+        if(dest != null)
         {
             if(!pendingTransfer)
-                sendMessage(destIndex, "FILE " + clientName + " " + texte );
+                sendMessage(dest, "FILE " + clientName + " " + texte );
             else
-                sendMessage(destIndex, "BUFFER " + clientName + " " + texte );
+                sendMessage(dest, "BUFFER " + clientName + " " + texte );
             pendingTransfer = true;
         }   
         else
-        {
-            destIndex = getClientID();
-            sendMessage(destIndex, "Sorry, " + userName + " is not connected to the chat");
-        }
+            sendMessage(this, "Sorry, " + userName + " is not connected to the chat");
     }
 
     private synchronized void processMessage(String texte){
@@ -86,9 +112,9 @@ class ServiceChat extends Thread {
         {
             if(texte.equals(""))
                 if(nameProvided)
-                    sendMessage(getClientID(), "Please specify a valid password");
+                    sendMessage(this, "Please specify a valid password");
                 else
-                    sendMessage(getClientID(), "Please specify a valid user name");
+                    sendMessage(this, "Please specify a valid user name");
             else
                 authentication(texte);
         }
@@ -96,7 +122,7 @@ class ServiceChat extends Thread {
         {
             try
             {
-                if(!texte.substring(0,7).equals("/buffer"))
+                if(!texte.startsWith("/buffer"))
                     System.out.println(clientName + ": " + texte);
                 if(texte.substring(0,1).equals("/"))
                     processCommand(texte.substring(1,texte.length()));
@@ -117,69 +143,83 @@ class ServiceChat extends Thread {
 
     private synchronized void authentication(String texte){
 
-        int currentClientIndex = getClientID();
-       
-        if(!nameProvided)
+        if(loginPending)
+        {
+            sendMessage(this, "Authentication in progress");
+        }
+        else if(!nameProvided)
         {
-            if(findMatchingName(texte) < getNbClients())
+            if(!rename(texte))
             {
-                sendMessage(currentClientIndex, "Pseudo " + texte + " is already connected\nPlease enter your name" );
+                sendMessage(this, "Pseudo " + texte + " is already connected\nPlease enter your name" );
             }
             else
             {
-                if(credentialsMap.get(texte) != null)
-                    sendMessage(currentClientIndex, "Please authenticate with your password" );
+                if(credentials.exists(texte))
+                    sendMessage(this, "Please authenticate with your password" );
                 else
-                    sendMessage(currentClientIndex, "Please provide a password for further authentication" );
+                    sendMessage(this, "Please provide a password for further authentication" );
                 nameProvided = true;
-                clientName = ""+ texte;
-                clientID[currentClientIndex] = clientName;
             }
         }
         else
         {
-            if(credentialsMap.get(clientName) != null)
-            {
-                if(credentialsMap.get(clientName).equals(texte))
-                    isAuthenticated = true;
-                else
-                {
-                    sendMessage(currentClientIndex, "Authentication failure\nPlease enter your name" );
-                    isAuthenticated = false;
-                    nameProvided = false;
-                    clientName = "";
-                    clientID[currentClientIndex] = clientName;
+            // The password is hashed on a worker, which then completes the login
+            final String user = clientName;
+            final String password = texte;
+            loginPending = true;
+            if(!LoginPool.submit(new Runnable() {
+                public void run() {
+                    // A user registered meanwhile by another connection must give its password
+                    boolean valid = credentials.exists(user) ? credentials.check(user, password)
+                                                             : credentials.register(user, password) || credentials.check(user, password);
+                    synchronized(ServiceChat.this) {
+                        loginPending = false;
+                        // Gone meanwhile
+                        if(sessions.get(user) != ServiceChat.this)
+                            return;
+                        if(valid)
+                            welcome();
+                        else
+                            restartAuthentication("Authentication failure");
+                    }
                 }
-            }
-            else
+            }))
             {
-                credentialsMap.put(clientName, texte); 
-                isAuthenticated = true;
+                loginPending = false;
+                restartAuthentication("Server busy, please retry");
             }
         }
-        if(isAuthenticated)
-        {
-            System.out.println(clientName + " connected");
-            sendMessage(getClientID(), "[SERVER] Hello "+clientName+"!");
-            broadcastMessage("[SERVER]", clientName+" has joined the chat / "+nbClients+" users connected.");
-        }
+    }
+
+    private synchronized void welcome(){
+        isAuthenticated = true;
+        System.out.println(clientName + " connected");
+        sendMessage(this, "[SERVER] Hello "+clientName+"!");
+        broadcastMessage("[SERVER]", clientName+" has joined the chat / "+getNbClients()+" users connected.");
+    }
+
+    private synchronized void restartAuthentication(String reason){
+        sendMessage(this, reason + "\nPlease enter your name" );
+        isAuthenticated = false;
+        nameProvided = false;
+        renameAnonymous();
     }
 
     private synchronized void processCommand(String texte){
 
-        int i;
         String[] textParts = texte.split(" ");
 
         switch(textParts[0])
         {
             case "nusers":
-                sendMessage(getClientID(), ""+ getNbClients());
+                sendMessage(this, ""+ getNbClients());
                 break;
             case "list":
-                sendMessage(getClientID(), "List of Users :");
-                for(i = 0; i < getNbClients(); i++)
+                sendMessage(this, "List of Users :");
+                for(String name : sessions.keySet())
                 {
-                    sendMessage(getClientID(), clientID[i]);
+                    sendMessage(this, name);
                 }
                 break;
             case "quit":
@@ -187,46 +227,59 @@ class ServiceChat extends Thread {
                 break;
             case "nickname":
                 try{
-                    String pwd = credentialsMap.remove(clientName);
-                    clientName = textParts[1];
-                    credentialsMap.put(clientName, pwd); 
+                    // The password moves first, in one step: no login may see it under both names.
+                    // Nobody can log in under the old name meanwhile, as this session still holds it.
+                    String oldName = clientName;
+                    String newName = textParts[1];
+                    boolean registered = credentials.exists(oldName);
+                    if(sessions.containsKey(newName))
+                        sendMessage(this, "Pseudo " + newName + " is already connected");
+                    else if(registered && !credentials.rename(oldName, newName))
+                        sendMessage(this, "Pseudo " + newName + " is already registered");
+                    else if(!rename(newName))
+                    {
+                        if(registered && !credentials.rename(newName, oldName))
+                            System.out.println("Credentials of " + oldName + " left under " + newName);
+                        sendMessage(this, "Pseudo " + newName + " is already connected");
+                    }
 		        } catch(ArrayIndexOutOfBoundsException e ) {
-                    sendMessage(getClientID(), "/nickname <name>    : change nickname");
+                    sendMessage(this, "/nickname <name>    : change nickname");
                 }
                 break;
             case "file":
                 try{
                     unicastFileTransfer(textParts[1], texte.substring(textParts[0].length()+textParts[1].length()+2, texte.length()));
 		        } catch(ArrayIndexOutOfBoundsException e ) {
-                    sendMessage(getClientID(), "/file <name> <file> : transmit file");
+                    sendMessage(this, "/file <name> <file> : transmit file");
                 }
                 break;
             case "buffer":
                 if(!pendingTransfer)
                 {
-                    sendMessage(getClientID(), "Command "+ texte + " unknown");
-                    sendMessage(getClientID(), "/quit                   : quit the chat");
-                    sendMessage(getClientID(), "/nusers                 : get number of connected users");
-                    sendMessage(getClientID(), "/list                   : get list of connected users");
-                    sendMessage(getClientID(), "/nickname <name>        : change nickname");
-                    sendMessage(getClientID(), "/file <name> <file>     : transmit file");
-                    sendMessage(getClientID(), "/msg <username> <text>  : send private message to given user");
-                    sendMessage(getClientID(), "@<username> <text>      : send private message to given user");
+                    sendMessage(this, "Command "+ texte + " unknown");
+                    sendMessage(this, "/quit                   : quit the chat");
+                    sendMessage(this, "/nusers                 : get number of connected users");
+                    sendMessage(this, "/list                   : get list of connected users");
+                    sendMessage(this, "/nickname <name>        : change nickname");
+                    sendMessage(this, "/file <name> <file>     : transmit file");
+                    sendMessage(this, "/msg <username> <text>  : send private message to given user");
+                    sendMessage(this, "@<username> <text>      : send private message to given user");
                 }
 
                 try{
                     unicastFileTransfer(textParts[1], texte.substring(textParts[0].length()+textParts[1].length()+2, texte.length()));
 		        } catch(ArrayIndexOutOfBoundsException e ) {
-                    sendMessage(getClientID(), "Buffer transmission issue");
+                    sendMessage(this, "Buffer transmission issue");
                 }
                 break;
             case "endoftransfer":
                 try{
                     pendingTransfer = false;
-                    int ID = findMatchingName(textParts[1]);
-                    sendMessage(ID, "ENDOFFILE " + clientName);
+                    ServiceChat dest = sessions.get(textParts[1]);
+                    if(dest != null)
+                        sendMessage(dest, "ENDOFFILE " + clientName);
 		        } catch(ArrayIndexOutOfBoundsException e ) {
-                    sendMessage(getClientID(), "Buffer end of file issue");
+                    sendMessage(this, "Buffer end of file issue");
                 }
                 break;
 
@@ -234,71 +287,56 @@ class ServiceChat extends Thread {
                 try{
                     unicastMessage(textParts[1], texte.substring(textParts[0].length()+textParts[1].length()+2, texte.length()));
 		        } catch(ArrayIndexOutOfBoundsException e ) {
-                    sendMessage(getClientID(), "/msg <username> <text>  : send private message to given user");
+                    sendMessage(this, "/msg <username> <text>  : send private message to given user");
                 }
                 break;
 
             default:
                 if(!textParts[0].equals("help"))
-                    sendMessage(getClientID(), "Command "+ texte + " unknown");
-                sendMessage(getClientID(), "/quit                   : quit the chat");
-                sendMessage(getClientID(), "/nusers                 : get number of connected users");
-                sendMessage(getClientID(), "/list                   : get list of connected users");
-                sendMessage(getClientID(), "/nickname <name>        : change nickname");
-                sendMessage(getClientID(), "/file <name> <file>     : transmit file");
-                sendMessage(getClientID(), "/msg <username> <text>  : send private message to given user");
-                sendMessage(getClientID(), "@<username> <text>      : send private message to given user");
+                    sendMessage(this, "Command "+ texte + " unknown");
+                sendMessage(this, "/quit                   : quit the chat");
+                sendMessage(this, "/nusers                 : get number of connected users");
+                sendMessage(this, "/list                   : get list of connected users");
+                sendMessage(this, "/nickname <name>        : change nickname");
+                sendMessage(this, "/file <name> <file>     : transmit file");
+                sendMessage(this, "/msg <username> <text>  : send private message to given user");
+                sendMessage(this, "@<username> <text>      : send private message to given user");
                 break;
         }
     }
 
-    private synchronized void deconnexion(){
-        int i;
+    private void deconnexion(){
         try{
-            int currentClientIndex = getClientID();
+            // Already disconnected, by /quit
+            if(clientName == null || !sessions.remove(clientName, this))
+                return;
 
             isAuthenticated = false;
             nameProvided = false;
-            sendMessage(getClientID(), "[SERVER] Bye "+clientName+"!");
-
-            for(i = currentClientIndex; i < nbClients-1; i++)
-            {
-                outputs[i] = outputs[i+1];
-                clientID[i] = clientID[i+1];
-            }
+            sendMessage(this, "[SERVER] Bye "+clientName+"!");
 
-            socket.close();
-            nbClients--;
+            connection.close();
 
-            broadcastMessage("[SERVER]", clientName + " has left the chat / "+nbClients+" users connected.");
+            broadcastMessage("[SERVER]", clientName + " has left the chat / "+getNbClients()+" users connected.");
             System.out.println(clientName + " disconnected");
         } catch( IOException e ) {
 			System.out.println( "problem during disconnection" );
 		}
     }
 
-    private synchronized void connexion(){
-        try{
-            isAuthenticated = false;
-            nameProvided = false;
-            outputs[nbClients] = new PrintStream( socket.getOutputStream() );
-            sendMessage(nbClients, "Please enter your name");
-            clientName = ""+ socket.getPort();
-            clientID[nbClients] = clientName;
-            nbClients++;
-		} catch( IOException | ArrayIndexOutOfBoundsException e ) {
-			try {
-				socket.close();
-			} catch( IOException e2 ) {
-				System.out.println( "problem while closing socket" );
-			}
-		}
+    private void connexion( OutputStream out ){
+        isAuthenticated = false;
+        nameProvided = false;
+        // Flushed at each line, for ServerChatNIO to queue whole lines
+        output = new PrintStream( out, true );
+        sendMessage(this, "Please enter your name");
+        renameAnonymous();
     }
 
 	public void run() {
 		try {
 			input = new BufferedReader( new InputStreamReader( socket.getInputStream() ) );
-            connexion();
+            connexion( socket.getOutputStream() );
 		} catch( IOException e ) {
 			try {
 				socket.close();
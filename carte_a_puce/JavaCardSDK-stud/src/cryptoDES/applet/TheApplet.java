@@ -14,29 +14,53 @@ import javacardx.crypto.*;
 public class TheApplet extends Applet {
 
 
-    private final static byte CLA_TEST				= (byte)0x90;
+    private final static byte CLA_TEST				= (byte)0x80;
+    // ISO 7816 command chaining: more APDUs of the same message follow
+    private final static byte CLA_CHAINING			= (byte)0x10;
 
 
     private final static byte INS_DES_ECB_NOPAD_ENC           	= (byte)0x20;
     private final static byte INS_DES_ECB_NOPAD_DEC           	= (byte)0x21;
+    private final static byte INS_DES_CBC_NOPAD_ENC           	= (byte)0x22;
+    private final static byte INS_DES_CBC_NOPAD_DEC           	= (byte)0x23;
     private final static byte INS_TESTDES_ECB_NOPAD_ENC       	= (byte)0x28;
     private final static byte INS_TESTDES_ECB_NOPAD_DEC       	= (byte)0x29;
+    private final static byte INS_BENCH                       	= (byte)0x30;
+
+    // algorithms of INS_BENCH, given in P1
+    private final static byte BENCH_DES				= (byte)0x00;
+    private final static byte BENCH_DES3			= (byte)0x01;
+    private final static byte BENCH_RSA_PUBLIC			= (byte)0x02;
+    private final static byte BENCH_RSA_PRIVATE			= (byte)0x03;
+
+    // P1 of the first APDU of a message: its data begins with the IV
+    private final static byte P1_IV				= (byte)0x01;
+    // not in the ISO7816 interface of JavaCard 2.2.1
+    private final static short SW_LAST_COMMAND_EXPECTED		= (short)0x6883;
 
 
 	static final byte[] theDESKey = 
 		new byte[] { (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA };
+	// 3 key triple DES, for the benchmarks
+	static final byte[] theBenchKey = 
+		new byte[] { (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA,
+			     (byte)0xFE, (byte)0xFE, (byte)0xFE, (byte)0xFE, (byte)0xFE, (byte)0xFE, (byte)0xFE, (byte)0xFE,
+			     (byte)0xBA, (byte)0xBA, (byte)0xBA, (byte)0xBA, (byte)0xBA, (byte)0xBA, (byte)0xBA, (byte)0xBA };
 
 
 
     // cipher instances
     private Cipher 
-	    cDES_ECB_NOPAD_enc, cDES_ECB_NOPAD_dec;
+	    cDES_ECB_NOPAD_enc, cDES_ECB_NOPAD_dec, cDES_CBC_NOPAD_enc, cDES_CBC_NOPAD_dec,
+	    cDES3_ECB_NOPAD_enc, cRSA_NOPAD_pub, cRSA_NOPAD_priv;
 
 
     // key objects
 			
     private Key 
 	    secretDESKey, secretDES2Key, secretDES3Key;
+    private KeyPair 
+	    keyPairRSA;
 
 
     // "Foo" (name, also sent after termining an operation)
@@ -69,6 +93,14 @@ public class TheApplet extends Applet {
     //nb loop DES tests
     private final static short NBTESTSDESCIPHER = 100;
     private final static short NBTESTSDESUNCIPHER = 100;
+    // payload of the benchmarks, ciphered in place: up to 240 bytes, filled up to 2 RSA blocks
+    private final static short RSASIZE = (short)(KeyBuilder.LENGTH_RSA_1024/8);
+    private final static short BENCHSIZE = (short)(2*RSASIZE);
+    private byte[] benchData;
+    // IV of the message being ciphered in CBC, then the next one while deciphering in place
+    private byte[] chainIV;
+    // INS of the message whose next APDU is expected, 0 if none
+    private byte[] chainINS;
     /*
     //nb loop RSA tests
     private final static short NBTESTSRSACIPHER = 100;
@@ -81,12 +113,15 @@ public class TheApplet extends Applet {
     boolean 
 	    pseudoRandom, secureRandom,
 	    SHA1, MD5, RIPEMD160,
-	    keyDES, DES_ECB_NOPAD, DES_CBC_NOPAD;
+	    keyDES, DES_ECB_NOPAD, DES_CBC_NOPAD,
+	    DES3_ECB_NOPAD, RSA_NOPAD;
 
 
     protected TheApplet() { 
 	    initKeyDES(); 
 	    initDES_ECB_NOPAD(); 
+	    initDES_CBC_NOPAD();
+	    initBench();
 
 	    this.register();
     }
@@ -116,6 +151,44 @@ public class TheApplet extends Applet {
     }
 
 
+    private void initDES_CBC_NOPAD() {
+	    chainIV = JCSystem.makeTransientByteArray( (short)16, JCSystem.CLEAR_ON_DESELECT );
+	    chainINS = JCSystem.makeTransientByteArray( (short)1, JCSystem.CLEAR_ON_DESELECT );
+	    if( keyDES ) try {
+		    cDES_CBC_NOPAD_enc = Cipher.getInstance(Cipher.ALG_DES_CBC_NOPAD, false);
+		    cDES_CBC_NOPAD_dec = Cipher.getInstance(Cipher.ALG_DES_CBC_NOPAD, false);
+		    DES_CBC_NOPAD = true;
+	    } catch( Exception e ) {
+		    DES_CBC_NOPAD = false;
+	    }
+    }
+
+
+    private void initBench() {
+	    benchData = JCSystem.makeTransientByteArray( BENCHSIZE, JCSystem.CLEAR_ON_DESELECT );
+	    try {
+		    secretDES3Key = KeyBuilder.buildKey(KeyBuilder.TYPE_DES, KeyBuilder.LENGTH_DES3_3KEY, false);
+		    ((DESKey)secretDES3Key).setKey(theBenchKey,(short)0);
+		    cDES3_ECB_NOPAD_enc = Cipher.getInstance(Cipher.ALG_DES_ECB_NOPAD, false);
+		    cDES3_ECB_NOPAD_enc.init( secretDES3Key, Cipher.MODE_ENCRYPT );
+		    DES3_ECB_NOPAD = true;
+	    } catch( Exception e ) {
+		    DES3_ECB_NOPAD = false;
+	    }
+	    try {
+		    keyPairRSA = new KeyPair( KeyPair.ALG_RSA, KeyBuilder.LENGTH_RSA_1024 );
+		    keyPairRSA.genKeyPair();
+		    cRSA_NOPAD_pub = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
+		    cRSA_NOPAD_priv = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
+		    cRSA_NOPAD_pub.init( keyPairRSA.getPublic(), Cipher.MODE_ENCRYPT );
+		    cRSA_NOPAD_priv.init( keyPairRSA.getPrivate(), Cipher.MODE_DECRYPT );
+		    RSA_NOPAD = true;
+	    } catch( Exception e ) {
+		    RSA_NOPAD = false;
+	    }
+    }
+
+
     public static void install(byte[] bArray, short bOffset, byte bLength) throws ISOException {
 	    new TheApplet();
     }
@@ -127,7 +200,7 @@ public class TheApplet extends Applet {
         if( selectingApplet() == true )
           return ;
 
-        if( buffer[ISO7816.OFFSET_CLA] != CLA_TEST )
+        if( (byte)(buffer[ISO7816.OFFSET_CLA] & ~CLA_CHAINING) != CLA_TEST )
             ISOException.throwIt( ISO7816.SW_CLA_NOT_SUPPORTED );
 
         try { switch( buffer[ISO7816.OFFSET_INS] ) {
@@ -137,19 +210,141 @@ public class TheApplet extends Applet {
 	case INS_TESTDES_ECB_NOPAD_DEC: if( DES_ECB_NOPAD ) 
 		testCipherGeneric( cDES_ECB_NOPAD_dec, KeyBuilder.LENGTH_DES, NBTESTSDESUNCIPHER   ); return;
 
+	case INS_BENCH: bench( apdu ); return;
+
 	case INS_DES_ECB_NOPAD_ENC: if( DES_ECB_NOPAD )
-		cipherGeneric( apdu, cDES_ECB_NOPAD_enc, KeyBuilder.LENGTH_DES ); return;
+		cipherGeneric( apdu, cDES_ECB_NOPAD_enc, KeyBuilder.LENGTH_DES, Cipher.MODE_ENCRYPT ); return;
 	case INS_DES_ECB_NOPAD_DEC: if( DES_ECB_NOPAD ) 
-		cipherGeneric( apdu, cDES_ECB_NOPAD_dec, KeyBuilder.LENGTH_DES  ); return;
+		cipherGeneric( apdu, cDES_ECB_NOPAD_dec, KeyBuilder.LENGTH_DES, Cipher.MODE_DECRYPT ); return;
+	case INS_DES_CBC_NOPAD_ENC: if( DES_CBC_NOPAD )
+		cipherGeneric( apdu, cDES_CBC_NOPAD_enc, KeyBuilder.LENGTH_DES, Cipher.MODE_ENCRYPT ); return;
+	case INS_DES_CBC_NOPAD_DEC: if( DES_CBC_NOPAD ) 
+		cipherGeneric( apdu, cDES_CBC_NOPAD_dec, KeyBuilder.LENGTH_DES, Cipher.MODE_DECRYPT ); return;
 	    }
+	} catch( ISOException e ) {
+		throw e;
 	} catch( Exception e ) {
 	}
     }
 
 
-	private void cipherGeneric( APDU apdu, Cipher cipher, short keyLength ) {
-		// Write the method ciphering/unciphering data from the computer.
-		// The result is sent back to the computer.
+	/*
+	 * Cipher the data of the APDU in place and send it back in the response: whole blocks, up to 248 bytes
+	 * when the APDU buffer holds them (261 bytes on most cards, SW_WRONG_LENGTH otherwise).
+	 * A message longer than an APDU is cut in several ones with the same INS, CLA_CHAINING being set on
+	 * all of them but the last. In CBC the IV goes from an APDU to the next in chainIV: zeros, or the first
+	 * block of the first APDU when P1 is P1_IV, then the last ciphered block of the APDU before.
+	 */
+	private void cipherGeneric( APDU apdu, Cipher cipher, short keyLength, byte mode ) {
+		byte[] buffer = apdu.getBuffer();
+		short block = (short)(keyLength/8);
+		short offset = ISO7816.OFFSET_CDATA;
+		short lc = (short)(buffer[ISO7816.OFFSET_LC] & 0xFF);
+		boolean cbc = cipher.getAlgorithm() == Cipher.ALG_DES_CBC_NOPAD;
+		boolean first = chainINS[0] == (byte)0;
+
+		// a message is done before another begins
+		if( !first && chainINS[0] != buffer[ISO7816.OFFSET_INS] ) {
+			chainINS[0] = (byte)0;
+			ISOException.throwIt( SW_LAST_COMMAND_EXPECTED );
+		}
+		chainINS[0] = (byte)0;
+		if( (short)(offset + lc) > (short)buffer.length || lc % block != 0 )
+			ISOException.throwIt( ISO7816.SW_WRONG_LENGTH );
+
+		short length = apdu.setIncomingAndReceive();
+		while( length < lc ) {
+			short received = apdu.receiveBytes( (short)(offset + length) );
+			if( received == 0 )
+				ISOException.throwIt( ISO7816.SW_WRONG_LENGTH );
+			length += received;
+		}
+
+		if( first ) {
+			Util.arrayFillNonAtomic( chainIV, (short)0, block, (byte)0 );
+			if( buffer[ISO7816.OFFSET_P1] == P1_IV ) {
+				if( length == 0 )
+					ISOException.throwIt( ISO7816.SW_WRONG_LENGTH );
+				Util.arrayCopyNonAtomic( buffer, offset, chainIV, (short)0, block );
+				offset += block;
+				length -= block;
+			}
+		}
+
+		if( length > 0 ) {
+			if( cbc ) {
+				cipher.init( secretDESKey, mode, chainIV, (short)0, block );
+				// the last ciphered block, before it is deciphered in place
+				if( mode == Cipher.MODE_DECRYPT )
+					Util.arrayCopyNonAtomic( buffer, (short)(offset + length - block), chainIV, block, block );
+			}
+			cipher.doFinal( buffer, offset, length, buffer, offset );
+			if( cbc ) {
+				if( mode == Cipher.MODE_DECRYPT )
+					Util.arrayCopyNonAtomic( chainIV, block, chainIV, (short)0, block );
+				else
+					Util.arrayCopyNonAtomic( buffer, (short)(offset + length - block), chainIV, (short)0, block );
+			}
+		}
+
+		if( (buffer[ISO7816.OFFSET_CLA] & CLA_CHAINING) != 0 )
+			chainINS[0] = buffer[ISO7816.OFFSET_INS];
+		apdu.setOutgoingAndSend( offset, length );
+	}
+
+
+	/*
+	 * Cipher the payload P2 times with the algorithm of P1, and answer the number of bytes ciphered each time
+	 * on 2 bytes: the payload cut to whole blocks, or filled with zeros up to whole RSA blocks.
+	 * With P2 = 0 only the APDU is exchanged, which the host takes away from the timings.
+	 */
+	private void bench( APDU apdu ) {
+		byte[] buffer = apdu.getBuffer();
+		Cipher cipher = null;
+		short block = (short)8;
+
+		switch( buffer[ISO7816.OFFSET_P1] ) {
+		case BENCH_DES: if( DES_ECB_NOPAD ) cipher = cDES_ECB_NOPAD_enc; break;
+		case BENCH_DES3: if( DES3_ECB_NOPAD ) cipher = cDES3_ECB_NOPAD_enc; break;
+		case BENCH_RSA_PUBLIC: if( RSA_NOPAD ) cipher = cRSA_NOPAD_pub; block = RSASIZE; break;
+		case BENCH_RSA_PRIVATE: if( RSA_NOPAD ) cipher = cRSA_NOPAD_priv; block = RSASIZE; break;
+		}
+		if( cipher == null )
+			ISOException.throwIt( ISO7816.SW_FUNC_NOT_SUPPORTED );
+		short nbLoops = (short)(buffer[ISO7816.OFFSET_P2] & 0xFF);
+
+		short length = (short)0;
+		short received = apdu.setIncomingAndReceive();
+		while( received > 0 ) {
+			if( (short)(length + received) > BENCHSIZE )
+				ISOException.throwIt( ISO7816.SW_WRONG_LENGTH );
+			Util.arrayCopyNonAtomic( buffer, ISO7816.OFFSET_CDATA, benchData, length, received );
+			length += received;
+			received = apdu.receiveBytes( ISO7816.OFFSET_CDATA );
+		}
+
+		// a single doFinal for the symmetric ciphers, one per block for RSA
+		short step, total;
+		if( block == RSASIZE ) {
+			total = (short)((short)((short)(length + RSASIZE - 1) / RSASIZE) * RSASIZE);
+			step = block;
+			Util.arrayFillNonAtomic( benchData, length, (short)(total - length), (byte)0 );
+			// each block smaller than the modulus
+			for( short off = 0; off < total; off += RSASIZE )
+				benchData[off] = (byte)0;
+		} else {
+			total = (short)(length - length % block);
+			step = total;
+		}
+		if( total == 0 )
+			ISOException.throwIt( ISO7816.SW_WRONG_LENGTH );
+
+		for( short loop = 0; loop < nbLoops; loop++ )
+			for( short off = 0; off < total; off += step )
+				cipher.doFinal( benchData, off, step, benchData, off );
+
+		Util.setShort( buffer, (short)0, total );
+		apdu.setOutgoingAndSend( (short)0, (short)2 );
 	}
 
 
@@ -14,31 +14,84 @@ public class TheClient {
 
 
 	
-    private final static byte CLA_TEST				= (byte)0x90;
+    private final static byte CLA_TEST				= (byte)0x80;
+    private final static byte CLA_CHAINING			= (byte)0x10;
     private final static byte INS_TESTDES_ECB_NOPAD_ENC       	= (byte)0x28;
     private final static byte INS_TESTDES_ECB_NOPAD_DEC       	= (byte)0x29;
     private final static byte INS_DES_ECB_NOPAD_ENC           	= (byte)0x20;
     private final static byte INS_DES_ECB_NOPAD_DEC           	= (byte)0x21;
+    private final static byte INS_DES_CBC_NOPAD_ENC           	= (byte)0x22;
+    private final static byte INS_DES_CBC_NOPAD_DEC           	= (byte)0x23;
+    private final static byte INS_BENCH                       	= (byte)0x30;
     private final static byte P1_EMPTY = (byte)0x00;
     private final static byte P2_EMPTY = (byte)0x00;
+    private final static byte P1_IV = (byte)0x01;
+    // largest data of a short APDU holding whole DES blocks
+    private final static int DATAMAXSIZE = 248;
   
 
     private PassThruCardService servClient = null;
    
     boolean DISPLAY = true;
 
+    final static String USAGE = "Args error, please use the exe as follows:\n"+
+                                "-b <csv_file>      : run the benchmarks of the card, written to csv_file\n"+
+                                "-n <nb_iterations> : ciphers per APDU for DES and 3DES (1-255), default is 100, a tenth for RSA\n"+
+                                "-r <nb_rounds>     : APDUs timed per measure, the fastest being kept, default is 5\n"+
+                                "-t <reader>        : name of the reader in opencard.properties (mySim for cref), default is any reader";
+
+    // algorithms of INS_BENCH, in the order of their P1
+    final static String[] BENCH_ALGORITHMS = { "DES", "3DES", "RSA-1024-public", "RSA-1024-private" };
+    final static int[] BENCH_BLOCKS = { 8, 8, 128, 128 };
+    final static int[] BENCH_PAYLOADS = { 8, 16, 32, 64, 128, 240 };
+
+    String benchFile = null;
+    int nbIterations = 100;
+    int nbRounds = 5;
+    String readerName = null;
+
 
     public static void main( String[] args ) throws InterruptedException {
-	    new TheClient();
+	    TheClient client = new TheClient();
+
+	    if(args.length%2 != 0)
+	    {
+		    System.out.println(USAGE);
+		    return;
+	    }
+	    for(int i = 0; i < args.length/2; i++)
+	    {
+		    try
+		    {
+			    if(args[2*i].equals("-b"))
+				    client.benchFile = args[2*i+1];
+			    else if(args[2*i].equals("-n"))
+				    client.nbIterations = Math.max(1, Math.min(255, Integer.parseInt(args[2*i+1])));
+			    else if(args[2*i].equals("-r"))
+				    client.nbRounds = Math.max(1, Integer.parseInt(args[2*i+1]));
+			    else if(args[2*i].equals("-t"))
+				    client.readerName = args[2*i+1];
+			    else
+			    {
+				    System.out.println(USAGE);
+				    return;
+			    }
+		    }
+		    catch(NumberFormatException numE){
+			    System.out.println("Please enter an integer after "+args[2*i]);
+			    return;
+		    }
+	    }
+	    client.run();
     }
 
 
-    public TheClient() {
+    public void run() {
 	    try {
 		    SmartCard.start();
 		    System.out.print( "Smartcard inserted?... " ); 
 		    
-		    CardRequest cr = new CardRequest (CardRequest.ANYCARD,null,null); 
+		    CardRequest cr = new CardRequest (CardRequest.ANYCARD,findReader(),null); 
 		    
 		    SmartCard sm = SmartCard.waitForCard (cr);
 		   
@@ -101,6 +154,23 @@ public class TheClient {
     }
 
 
+    /*
+     * Reader named by -t, among those of opencard.properties: null for the first card of any reader.
+     */
+    private CardTerminal findReader() {
+	    if( readerName == null )
+		    return null;
+	    java.util.Enumeration<?> readers = CardTerminalRegistry.getRegistry().getCardTerminals();
+	    while( readers.hasMoreElements() ) {
+		    CardTerminal reader = (CardTerminal)readers.nextElement();
+		    if( reader.getName().equals( readerName ) )
+			    return reader;
+	    }
+	    System.out.println( "No reader " + readerName + ", waiting for a card in any reader" );
+	    return null;
+    }
+
+
     /******************************************
      * *********** END OF TOOLS ***************
      * ****************************************/
@@ -150,7 +220,78 @@ public class TheClient {
 	} else 
 		System.out.println( "Applet selected\n" );
        
-	foo();
+	if( benchFile != null )
+		bench();
+	else
+		foo();
+    }
+
+
+    /*
+     * Fastest of nbRounds INS_BENCH APDUs in nanoseconds, -1 if the card refuses them.
+     */
+    private long timeBench( int algorithm, int nbLoops, byte[] payload ) {
+	    byte[] command = new byte[5+payload.length];
+	    long best = Long.MAX_VALUE;
+
+	    command[0] = CLA_TEST;
+	    command[1] = INS_BENCH;
+	    command[2] = (byte)algorithm;
+	    command[3] = (byte)nbLoops;
+	    command[4] = (byte)payload.length;
+	    System.arraycopy( payload, 0, command, 5, payload.length );
+	    CommandAPDU cmd = new CommandAPDU( command );
+	    for( int round = 0; round < nbRounds; round++ ) {
+		    long start = System.nanoTime();
+		    ResponseAPDU resp = this.sendAPDU( cmd, false );
+		    long elapsed = System.nanoTime() - start;
+		    if( resp.sw() != 0x9000 )
+			    return -1;
+		    best = Math.min( best, elapsed );
+	    }
+	    return best;
+    }
+
+
+    /*
+     * Time each algorithm on each payload size: the round trip is measured with no cipher on the card,
+     * and taken away from the time of the APDU ciphering the payload nbIterations times.
+     */
+    private void bench() {
+	    java.util.Random r = new java.util.Random( 0 );
+	    PrintStream csv;
+
+	    try {
+		    csv = new PrintStream( new FileOutputStream( benchFile ) );
+	    } catch( IOException e ) {
+		    System.out.println( "Cannot write " + benchFile );
+		    return;
+	    }
+	    csv.println( "algorithm,payload_bytes,iterations,round_trip_us,compute_us,per_cipher_us,bytes_per_s" );
+	    for( int algorithm = 0; algorithm < BENCH_ALGORITHMS.length; algorithm++ ) {
+		    int nbLoops = BENCH_BLOCKS[algorithm] > 8 ? Math.max( 1, nbIterations/10 ) : nbIterations;
+		    for( int i = 0; i < BENCH_PAYLOADS.length; i++ ) {
+			    if( BENCH_PAYLOADS[i] % BENCH_BLOCKS[algorithm] != 0 && BENCH_BLOCKS[algorithm] <= 8 )
+				    continue;
+			    byte[] payload = new byte[BENCH_PAYLOADS[i]];
+			    r.nextBytes( payload );
+
+			    long roundTrip = timeBench( algorithm, 0, payload );
+			    long total = timeBench( algorithm, nbLoops, payload );
+			    if( roundTrip < 0 || total < 0 ) {
+				    System.out.println( BENCH_ALGORITHMS[algorithm] + " not supported by the card" );
+				    break;
+			    }
+			    double perCipher = Math.max( 0, total - roundTrip ) / 1000.0 / nbLoops;
+			    String line = BENCH_ALGORITHMS[algorithm] + "," + payload.length + "," + nbLoops + "," +
+				    roundTrip/1000 + "," + (total - roundTrip)/1000 + "," + String.format( java.util.Locale.ROOT, "%.1f", perCipher ) + "," +
+				    (perCipher > 0 ? String.format( java.util.Locale.ROOT, "%.0f", payload.length*1e6/perCipher ) : "");
+			    csv.println( line );
+			    System.out.println( line );
+		    }
+	    }
+	    csv.close();
+	    System.out.println( "Benchmarks written to " + benchFile );
     }
 
 
@@ -183,8 +324,43 @@ public class TheClient {
 
 
     private byte[] cipherGeneric( byte typeINS, byte[] challenge ) {
-	    byte[] result = new byte[challenge.length];
-	    // TO COMPLETE
+	    return cipherGeneric( typeINS, null, challenge );
+    }
+
+
+    /*
+     * Cipher the challenge with the card, zero padded to whole DES blocks, in as few APDUs as possible:
+     * DATAMAXSIZE bytes each, all chained but the last. In CBC the IV is zeros unless given, then it
+     * goes in the first APDU. Null if the card refuses an APDU.
+     */
+    private byte[] cipherGeneric( byte typeINS, byte[] iv, byte[] challenge ) {
+	    int length = (challenge.length + 7) / 8 * 8;
+	    byte[] data = new byte[(iv == null ? 0 : iv.length) + length];
+	    byte[] result = new byte[length];
+	    int offset = 0, done = 0;
+
+	    if( iv != null )
+		    System.arraycopy( iv, 0, data, 0, iv.length );
+	    System.arraycopy( challenge, 0, data, data.length - length, challenge.length );
+	    do {
+		    int size = Math.min( DATAMAXSIZE, data.length - offset );
+		    byte[] command = new byte[5 + size];
+		    command[0] = offset + size < data.length ? (byte)(CLA_TEST | CLA_CHAINING) : CLA_TEST;
+		    command[1] = typeINS;
+		    command[2] = (offset == 0 && iv != null) ? P1_IV : P1_EMPTY;
+		    command[3] = P2_EMPTY;
+		    command[4] = (byte)size;
+		    System.arraycopy( data, offset, command, 5, size );
+		    ResponseAPDU resp = this.sendAPDU( new CommandAPDU( command ), DISPLAY );
+		    if( resp.sw() != 0x9000 )
+			    return null;
+		    byte[] answer = resp.data();
+		    int count = answer == null ? 0 : Math.min( answer.length, length - done );
+		    if( count > 0 )
+			    System.arraycopy( answer, 0, result, done, count );
+		    done += count;
+		    offset += size;
+	    } while( offset < data.length );
 	    return result;
     }
     
@@ -209,6 +385,35 @@ public class TheClient {
 	    System.out.println("\nciphered is:\n" + encoder.encode(response) + "\n");
 	    unciphered = cipherGeneric(INS_DES_ECB_NOPAD_DEC, response);
 	    System.out.print("\nunciphered is:\n" + encoder.encode(unciphered) + "\n");
+
+	    // a message of several APDUs in CBC, checked against the host
+	    byte[] message = new byte[1000];
+	    byte[] iv = new byte[8];
+	    r.nextBytes( message );
+	    r.nextBytes( iv );
+	    DISPLAY = false;
+	    d1 = System.currentTimeMillis();
+	    response = cipherGeneric(INS_DES_CBC_NOPAD_ENC, iv, message);
+	    d2 = System.currentTimeMillis();
+	    unciphered = cipherGeneric(INS_DES_CBC_NOPAD_DEC, iv, response);
+	    DISPLAY = true;
+	    if( response == null || unciphered == null ) {
+		    System.out.println("\nDES CBC not supported by the card");
+		    return;
+	    }
+	    System.out.println("\n" + message.length + " bytes ciphered in CBC in " + (d2 - d1) + " ms, " +
+		    (message.length + iv.length + DATAMAXSIZE - 1) / DATAMAXSIZE + " APDUs");
+	    try {
+		    javax.crypto.Cipher host = javax.crypto.Cipher.getInstance( "DES/CBC/NoPadding" );
+		    host.init( javax.crypto.Cipher.ENCRYPT_MODE,
+			    new javax.crypto.spec.SecretKeySpec( new byte[] { (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA,
+				    (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA }, "DES" ),
+			    new javax.crypto.spec.IvParameterSpec( iv ) );
+		    System.out.println("same as the host: " + java.util.Arrays.equals( host.doFinal( message ), response ));
+	    } catch( java.security.GeneralSecurityException e ) {
+		    System.out.println("DES CBC not available on the host: " + e.getMessage());
+	    }
+	    System.out.println("unciphered is the message: " + java.util.Arrays.equals( message, unciphered ));
     }
 
 
@@ -241,9 +241,13 @@ public class TheApplet extends Applet {
         // The result is sent back to the computer.
         
         byte[] buffer = apdu.getBuffer();
+        short length = (short)((short)0x00FF & (short)buffer[4]);
 
-        apdu.setIncomingAndReceive();
-        cipher.doFinal( buffer,(short)5, (short)((short)0x00FF & (short)buffer[4]), buffer, (short)5);
+        // A batch of DES blocks, up to MAXSIZEAPDU bytes, may come in several parts
+        short received = apdu.setIncomingAndReceive();
+        while( received < length )
+            received += apdu.receiveBytes( (short)(5 + received) );
+        cipher.doFinal( buffer,(short)5, length, buffer, (short)5);
         
         apdu.setOutgoingAndSend((short)5,(short)((short)0x00FF & (short)buffer[4]));
     }
@@ -0,0 +1,119 @@
+package client;
+
+import opencard.core.service.*;
+import opencard.core.terminal.*;
+
+/*
+ * Throughput of the two ways ClientChat ciphers messages and files, run as a plain program:
+ * java client.BenchCipher [-s <message_size>] [-k <nb_kbytes>] [-c <nb_kbytes>]
+ *  - hybrid: AES-GCM seal and open on the host, for chat messages and for /stream frames,
+ *  - card  : DES on the card, with 16-byte APDUs as for messages, and full APDUs as for files.
+ * The card is only measured when -c is given, since it needs a reader and the applet.
+ */
+public class BenchCipher {
+
+    final static String USAGE = "Args error, please use the exe as follows:\n"+
+                                "-s <message_size> : size of a chat message in bytes, default is 64\n"+
+                                "-k <nb_kbytes>    : data ciphered on the host per round, default is 16384\n"+
+                                "-c <nb_kbytes>    : data ciphered by the card, default is 0 for no card";
+
+    int messageSize = 64;
+    int hostSize = 16384*1024;
+    int cardSize = 0;
+
+    /*
+     * Seal then open size bytes in pieces of the given length, and print the best of 5 rounds.
+     */
+    void host( String name, SessionCipher cipher, int length ) throws Exception {
+        byte[] data = new byte[length];
+        byte[] sealed;
+        long start, elapsed, best = Long.MAX_VALUE;
+        int nbPieces = Math.max( 1, hostSize/length );
+
+        for(int round = 0; round < 5; round++)
+        {
+            start = System.nanoTime();
+            for(int i = 0; i < nbPieces; i++)
+            {
+                sealed = cipher.seal( data, 0, length );
+                data = cipher.open( sealed, 0, sealed.length );
+            }
+            elapsed = System.nanoTime() - start;
+            if(elapsed < best)
+                best = elapsed;
+        }
+        report( "hybrid, "+name, (long)nbPieces*length, nbPieces, best );
+    }
+
+    /*
+     * Cipher cardSize bytes on the card, length bytes per APDU.
+     */
+    void card( String name, CardSession session, int length ) throws Exception {
+        byte[] command = new byte[5+length+1];
+        int nbAPDU = Math.max( 1, cardSize/length );
+        long start;
+
+        command[1] = ClientChat.CIPHERFILEBYCARD;
+        command[4] = (byte)length;
+        command[5+length] = (byte)length;
+        start = System.nanoTime();
+        for(int i = 0; i < nbAPDU; i++)
+            if( session.send( new CommandAPDU( command ) ).sw() != 0x9000 )
+                throw new CardServiceException( "card error" );
+        report( "card, "+name, (long)nbAPDU*length, nbAPDU, System.nanoTime() - start );
+    }
+
+    void report( String name, long nbBytes, int nbPieces, long elapsed ) {
+        System.out.println( "  "+name+": "+String.format( "%.1f", nbBytes*1e9/1024/elapsed )+" KB/s, "+
+                            String.format( "%.1f", elapsed/1000.0/nbPieces )+" us per piece" );
+    }
+
+    public static void main( String[] args ) {
+        BenchCipher bench = new BenchCipher();
+
+        if(args.length%2 != 0)
+        {
+            System.out.println(USAGE);
+            return;
+        }
+        for(int i = 0; i < args.length/2; i++)
+        {
+            try
+            {
+                if(args[2*i].equals("-s"))
+                    bench.messageSize = Integer.parseInt(args[2*i+1]);
+                else if(args[2*i].equals("-k"))
+                    bench.hostSize = Integer.parseInt(args[2*i+1])*1024;
+                else if(args[2*i].equals("-c"))
+                    bench.cardSize = Integer.parseInt(args[2*i+1])*1024;
+                else
+                {
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+            catch(NumberFormatException numE){
+                System.out.println("Please enter an integer after "+args[2*i]);
+                return;
+            }
+        }
+
+        try {
+            System.out.println( "Seal and open, "+bench.messageSize+"-byte messages and "+ClientChat.STREAMCHUNK+"-byte frames:" );
+            SessionCipher cipher = new SessionCipher( new byte[16] );
+            bench.host( "messages", cipher, bench.messageSize );
+            bench.host( "frames", cipher, ClientChat.STREAMCHUNK );
+
+            if(bench.cardSize > 0)
+            {
+                System.out.println( "Cipher by card, "+bench.cardSize/1024+" KB:" );
+                CardSession session = new CardSession( ClientChat.SELECT_APPLET );
+                bench.card( "messages", session, 16 );
+                bench.card( "files", session, ClientChat.MAXSIZEAPDU );
+                session.close();
+            }
+        } catch( Exception e ) {
+            System.out.println( "BenchCipher error: " + e.getMessage() );
+        }
+    }
+}
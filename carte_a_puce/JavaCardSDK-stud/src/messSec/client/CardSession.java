@@ -0,0 +1,184 @@
+package client;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import opencard.core.OpenCardException;
+import opencard.core.event.*;
+import opencard.core.service.*;
+import opencard.core.terminal.*;
+import opencard.core.util.*;
+import opencard.opt.util.*;
+
+/*
+ * Long-lived session with the card, shared by the console and network threads of ClientChat.
+ * OCF is started, the card waited for and the applet selected only once, for the first APDU:
+ * each following APDU is then a single round trip through the same PassThruCardService.
+ * When the card is removed, the session is invalidated, and the next APDU waits for a card
+ * and selects the applet again before being sent, without the caller noticing.
+ * Several sessions may share OCF, each with the card of its own reader: OCF is stopped by the
+ * session which started it.
+ * APDUs may also be submitted without waiting: they are queued and sent in order by a thread of
+ * the session, so that the caller prepares the next ones while the card works on the first.
+ */
+public class CardSession implements CTListener {
+
+    private byte[] selectCommand;
+    // Reader of the card, or null for the first card inserted in any reader
+    private CardTerminal terminal;
+    private boolean started = false, listening = false;
+    private SmartCard card = null;
+    private PassThruCardService servClient = null;
+    // Cleared by the OCF event thread on card removal
+    private volatile boolean valid = false;
+    // Submitted APDUs, sent by a single thread which stops when there is nothing left to send
+    private final ThreadPoolExecutor queue;
+
+    public CardSession( byte[] selectCommand ) {
+        this( selectCommand, null );
+    }
+
+    public CardSession( byte[] selectCommand, CardTerminal terminal ) {
+        this.selectCommand = selectCommand;
+        this.terminal = terminal;
+        queue = new ThreadPoolExecutor( 1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread( Runnable r ) {
+                Thread thread = new Thread( r, "card" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        queue.allowCoreThreadTimeOut( true );
+    }
+
+    /*
+     * Send one APDU, opening the session first if needed.
+     * APDUs from several threads are sent one at a time, whole.
+     */
+    public synchronized ResponseAPDU send( CommandAPDU cmd ) throws OpenCardException {
+        if( !valid )
+            open();
+        try {
+            return servClient.sendCommandAPDU( cmd );
+        } catch( CardTerminalException e ) {
+            // The card may have been removed and inserted again between two APDUs.
+            System.out.println( "Card session lost (" + e.getMessage() + "), reconnecting" );
+            valid = false;
+            open();
+            return servClient.sendCommandAPDU( cmd );
+        }
+    }
+
+    /*
+     * Queue one APDU, sent after those submitted before it.
+     * The future fails with the OpenCardException of send.
+     */
+    public CompletableFuture<ResponseAPDU> submit( final CommandAPDU cmd ) {
+        return CompletableFuture.supplyAsync( new Supplier<ResponseAPDU>() {
+            public ResponseAPDU get() {
+                try {
+                    return send( cmd );
+                } catch( OpenCardException e ) {
+                    throw new CompletionException( e );
+                }
+            }
+        }, queue );
+    }
+
+    /*
+     * Queue APDUs sent in a row, with no APDU of another thread between them.
+     * The responses stop at the first status other than 9000, the following APDUs being of no use.
+     */
+    public CompletableFuture<List<ResponseAPDU>> submitAll( final List<CommandAPDU> cmds ) {
+        return CompletableFuture.supplyAsync( new Supplier<List<ResponseAPDU>>() {
+            public List<ResponseAPDU> get() {
+                List<ResponseAPDU> responses = new ArrayList<ResponseAPDU>( cmds.size() );
+                try {
+                    synchronized( CardSession.this ) {
+                        for( CommandAPDU cmd : cmds ) {
+                            ResponseAPDU resp = send( cmd );
+                            responses.add( resp );
+                            if( resp.sw() != 0x9000 )
+                                break;
+                        }
+                    }
+                } catch( OpenCardException e ) {
+                    throw new CompletionException( e );
+                }
+                return responses;
+            }
+        }, queue );
+    }
+
+    private void open() throws OpenCardException {
+        try {
+            if( !SmartCard.isStarted() ) {
+                SmartCard.start();
+                started = true;
+            }
+            if( !listening ) {
+                EventGenerator.getGenerator().addCTListener( this );
+                listening = true;
+            }
+        } catch( ClassNotFoundException e ) {
+            throw new CardServiceException( e.getMessage() );
+        }
+        if( card != null ) {
+            try {
+                card.close();
+            } catch( CardTerminalException e ) {}
+            card = null;
+        }
+
+        System.out.print( "Smartcard inserted?... " );
+        // OCF tries the request on the cards of all the readers, and may close the channel another session
+        // is opening on its own reader: the sessions get their cards one at a time
+        synchronized( CardSession.class ) {
+            card = SmartCard.waitForCard( new CardRequest( CardRequest.ANYCARD, terminal, null ) );
+        }
+        if( card == null )
+            throw new CardTerminalException( "did not get a SmartCard object!" );
+        System.out.println( "got a SmartCard object!\n" );
+        System.out.println( "ATR: " + HexString.hexify( card.getCardID().getATR() ) + "\n" );
+
+        try {
+            servClient = (PassThruCardService)card.getCardService( PassThruCardService.class, true );
+        } catch( ClassNotFoundException e ) {
+            throw new CardServiceException( e.getMessage() );
+        }
+
+        System.out.println( "Applet selecting..." );
+        if( servClient.sendCommandAPDU( new CommandAPDU( selectCommand ) ).sw() != 0x9000 )
+            throw new CardServiceException( "Wrong card, no applet to select!" );
+        System.out.println( "Applet selected" );
+        valid = true;
+    }
+
+    public void cardInserted( CardTerminalEvent ctEvent ) {}
+
+    public void cardRemoved( CardTerminalEvent ctEvent ) {
+        if( terminal != null && ctEvent.getCardTerminal() != terminal )
+            return;
+        System.out.println( "Smartcard removed" );
+        valid = false;
+    }
+
+    /*
+     * Release the card, and stop OCF if this session started it, when the client leaves.
+     */
+    public synchronized void close() {
+        valid = false;
+        try {
+            if( listening )
+                EventGenerator.getGenerator().removeCTListener( this );
+            listening = false;
+            if( card != null )
+                card.close();
+            card = null;
+            if( started && SmartCard.isStarted() )
+                SmartCard.shutdown();
+        } catch( CardTerminalException e ) {
+            System.out.println( "CardSession error: " + e.getMessage() );
+        }
+    }
+}
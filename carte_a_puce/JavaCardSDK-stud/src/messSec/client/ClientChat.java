@@ -9,15 +9,31 @@ import java.net.*;
 import java.io.*;
 import java.util.*;
 import java.util.Base64;
+import java.util.concurrent.*;
+import java.security.GeneralSecurityException;
 
 public class ClientChat extends Thread {
 
-    BufferedReader inputConsole, inputNetwork;
+    BufferedReader inputConsole;
+    // Read as bytes, since binary frames follow some lines
+    DataInputStream inputNetwork;
     PrintStream outputConsole, outputNetwork;
     boolean isAlive = false;
     HashMap<String, OutputStream> transferMap;
+    // Files being received by /stream, per sender
+    HashMap<String, OutputStream> streamMap;
+    // Acknowledgments still expected for the file being sent by /stream
+    Semaphore streamCredits;
+    volatile String streamDest;
+    volatile boolean streamAborted;
+    // Senders of the files being received with the session cipher
+    HashSet<String> sealedStreams;
+    // Hybrid mode: messages and files ciphered on the host with the session key, the card only deriving it
+    boolean hybrid = false;
+    volatile SessionCipher sessionCipher = null;
     
-    private PassThruCardService servClient = null;
+    private CardSession card;
+    private byte[] paddingCipher = null;
     boolean DISPLAY = true;
     boolean loop = true;
 	boolean isAuthenticated = false;
@@ -29,6 +45,10 @@ public class ClientChat extends Thread {
     static final byte UNCIPHERFILEBYCARD                        = (byte)0x13;
     static final byte CIPHERFILEBYCARD                          = (byte)0x12;
     static final short MAXSIZEAPDU                              = (short)0x00F0;
+    // Frames of /stream: their size, how many may wait for an acknowledgment, and how long in seconds
+    static final int STREAMCHUNK                                = 16*MAXSIZEAPDU;
+    static final int STREAMWINDOW                               = 4;
+    static final int STREAMTIMEOUT                              = 30;
     private final static byte INS_DES_ECB_NOPAD_ENC             = (byte)0x20;
     private final static byte INS_DES_ECB_NOPAD_DEC             = (byte)0x21;
 	private final static byte CLA_RSA                           = (byte)0x90;
@@ -39,8 +59,22 @@ public class ClientChat extends Thread {
 	private final static byte INS_PUT_PUBLIC_RSA_KEY            = (byte)0xF4;
 	private final static byte INS_GENERATE_RSA_KEY              = (byte)0xF6;
 	private final static byte INS_PUT_SERVER_PUBLIC_RSA_KEY     = (byte)0xF8;
+    final static byte[] SELECT_APPLET = {
+        (byte)0x00, (byte)0xA4, (byte)0x04, (byte)0x00, (byte)0x0A,
+            (byte)0xA0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x62,
+            (byte)0x03, (byte)0x01, (byte)0x0C, (byte)0x06, (byte)0x01
+    };
 
     public ClientChat( String[] args ) {
+        this( args, new BufferedReader( new InputStreamReader( System.in ) ), new PrintStream( System.out ), new CardSession( SELECT_APPLET ) );
+    }
+
+    /*
+     * Client typing the lines read from console, printing the chat to output, and ciphering with the given card:
+     * LoadChat runs many of them in the same program, each with its emulated card.
+     */
+    ClientChat( String[] args, BufferedReader console, PrintStream output, CardSession card ) {
+        this.card = card;
         try {
             int port = 2222;
             String address = "localhost";
@@ -48,9 +82,13 @@ public class ClientChat extends Thread {
                 address = args[0];
             if(args.length > 1)
                 port = Integer.parseInt(args[1]);
+            if(args.length > 2)
+                hybrid = args[2].equals("hybrid");
             Socket s = new Socket(address, port);
             transferMap = new HashMap<String, OutputStream>();
-            initInputOutput(s);
+            streamMap = new HashMap<String, OutputStream>();
+            sealedStreams = new HashSet<String>();
+            initInputOutput(s, console, output);
             
             //Start listenNetwork thread
             start();
@@ -58,6 +96,8 @@ public class ClientChat extends Thread {
             //Start console listener
             listenConsole();
 
+            //The card stays open for the whole session, from the first APDU on
+            card.close();
             s.close();
         } catch( IOException e ) {
             System.out.println( "connexion problem" );
@@ -73,7 +113,7 @@ public class ClientChat extends Thread {
     private ResponseAPDU sendAPDU( CommandAPDU cmd, boolean display ) {
         ResponseAPDU result = null;
         try {
-            result = this.servClient.sendCommandAPDU( cmd );
+            result = this.card.send( cmd );
             if(display)
                 displayAPDU(cmd, result);
         } catch( Exception e ) {
@@ -115,180 +155,396 @@ public class ClientChat extends Thread {
      *       * ****************************************/
 
 
-    private boolean selectApplet() {
-        boolean cardOk = false;
-        try {
-            CommandAPDU cmd = new CommandAPDU( new byte[] {
-                (byte)0x00, (byte)0xA4, (byte)0x04, (byte)0x00, (byte)0x0A,
-                    (byte)0xA0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x62, 
-                    (byte)0x03, (byte)0x01, (byte)0x0C, (byte)0x06, (byte)0x01
-            } );
-            ResponseAPDU resp = this.sendAPDU( cmd );
-            if( this.apdu2string( resp ).equals( "90 00" ) )
-                cardOk = true;
-        } catch(Exception e) {
-            System.out.println( "Exception caught in selectApplet: " + e.getMessage() );
-            java.lang.System.exit( -1 );
+    /*
+     * Ciphered files are made of 16-byte records, one per 8-byte chunk of the file: the chunk, 0x80, then zeros.
+     * The card ciphers in ECB mode, so the second half of the record of a complete chunk is always the same:
+     * it is ciphered once, and only the chunks themselves go to the card, as many as fit in one APDU.
+     */
+    private byte[] getPaddingCipher() {
+        if( paddingCipher == null ) {
+            byte[] padding = new byte[8];
+            padding[0] = (byte)0x80;
+            paddingCipher = cipherGeneric(CIPHERFILEBYCARD, P1, padding);
         }
-        return cardOk;
+        return paddingCipher;
     }
 
+    /*
+     * Fill block from the stream, unless the end of the stream is reached first.
+     * Return the number of bytes read.
+     */
+    private int readBlock(InputStream in, byte[] block) throws IOException {
+        int count = 0, res;
 
-    private void initNewCard( SmartCard card ) {
-        if( card != null )
-            System.out.println( "Smartcard inserted\n" );
-        else {
-            System.out.println( "Did not get a smartcard" );
-            System.exit( -1 );
-        }
-
-        System.out.println( "ATR: " + HexString.hexify( card.getCardID().getATR() ) + "\n");
-
-        try {
-            this.servClient = (PassThruCardService)card.getCardService( PassThruCardService.class, true );
-        } catch( Exception e ) {
-            System.out.println( e.getMessage() );
-        }
-
-        System.out.println("Applet selecting...");
-        if( !this.selectApplet() ) {
-            System.out.println( "Wrong card, no applet to select!\n" );
-            System.exit( 1 );
-            return;
-        } else 
-            System.out.println( "Applet selected" );
-    }
-    
-    void activateSmartcard()
-    {
-        try {
-            //Start smartcard
-            SmartCard.start();
-            System.out.print( "Smartcard inserted?... " );
-            
-            CardRequest cr = new CardRequest (CardRequest.ANYCARD,null,null); 
-
-            SmartCard sm = SmartCard.waitForCard (cr);
-
-            if (sm != null) {
-                System.out.println ("got a SmartCard object!\n");
-            } else
-                System.out.println( "did not get a SmartCard object!\n" );
-
-            this.initNewCard( sm );
-            
-        } catch( Exception e ) {
-            System.out.println( "TheClient error: " + e.getMessage() );
-        }
+        while(count < block.length && (res = in.read(block, count, block.length - count)) > 0)
+            count += res;
+        return count;
     }
 
     void uncipherFileByCard(String filename)
     {
-        byte[] challengeDES = new byte[16];
+        byte[] record = new byte[16];
+        byte[] batch = new byte[MAXSIZEAPDU];
         byte[] response;
-        int i = 0;
-        
-        activateSmartcard();
+        int nbAPDU = 0, size = 0, i;
+        boolean complete;
 
         try {
-            DataInputStream br = new DataInputStream(new FileInputStream(filename+"_crypt"));
-            DataOutputStream obr = new DataOutputStream(new FileOutputStream(filename));
-            byte[] buffer = new byte[0x16];
-            int res = 0;
+            InputStream br = new BufferedInputStream(new FileInputStream(filename+"_crypt"));
+            OutputStream obr = new BufferedOutputStream(new FileOutputStream(filename));
 
-            do
+            while(readBlock(br, record) == 16)
             {
-                try {
-                    res = br.read(buffer, 0, 16);
-                } catch (Exception e) {
-                    System.out.println( "Problem with buffer reader" );
+                complete = true;
+                for(i = 0; i < 8; i++)
+                    if(record[8+i] != getPaddingCipher()[i])
+                        complete = false;
+                if(complete)
+                {
+                    // Complete chunk: only the first half needs the card
+                    System.arraycopy(record, 0, batch, size, 8);
+                    size += 8;
+                    if(size < batch.length)
+                        continue;
                 }
-                if(res < 16)
-                    break;
-                for(i = 0; i < 16; i++)
-                    challengeDES[i] = buffer[i];
-                
-                response = cipherGeneric(UNCIPHERFILEBYCARD, P1, challengeDES);
-                
+                if(size > 0)
+                {
+                    response = cipherGeneric(UNCIPHERFILEBYCARD, P1, Arrays.copyOf(batch, size), false);
+                    obr.write(response, 0, size);
+                    nbAPDU++;
+                    size = 0;
+                }
+                if(complete)
+                    continue;
+
+                // Chunk shorter than 8 bytes, at the end of the file
+                response = cipherGeneric(UNCIPHERFILEBYCARD, P1, record, false);
+                nbAPDU++;
                 //Find starting point of padding
                 for(i = 15; i >= 0; i--)
                     if(response[i] == (byte)0x80)
                         break;
-
-                try {
+                if(i > 0)
                     obr.write(response, 0, i);
-                    obr.flush();
-                } catch (Exception e) {
-                    System.out.println( "Problem with buffer writer" );
-                }
-                
-            }while(res == 16);
+            }
+            if(size > 0)
+            {
+                response = cipherGeneric(UNCIPHERFILEBYCARD, P1, Arrays.copyOf(batch, size), false);
+                obr.write(response, 0, size);
+                nbAPDU++;
+            }
             br.close();
             obr.close();
-        } catch( Exception e ) {}
+            System.out.println( "File unciphered by card in " + nbAPDU + " APDU" );
+        } catch( IOException e ) {
+            System.out.println( "Problem while unciphering " + filename + ": " + e.getMessage() );
+        }
 
         System.out.println( "" );
         
-        try{
-            SmartCard.shutdown();
-        } catch( Exception e ) {
-            System.out.println( "TheClient error: " + e.getMessage() );
-        }
     }
 
 
+    /*
+     * Write the ciphered blocks of a chunk, each followed by the ciphered padding.
+     */
+    private void writeCipheredChunk(OutputStream obr, byte[] response, int length) throws IOException
+    {
+        for(int i = 0; i < length; i += 8)
+        {
+            obr.write(response, i, 8);
+            obr.write(getPaddingCipher(), 0, 8);
+        }
+    }
+
+    /*
+     * The chunks are pipelined: the card ciphers one while the next one is read from the file
+     * and the one before is written out.
+     */
     void cipherFileByCard(String filename)
     {
-        byte[] challengeDES = new byte[16];
-        byte[] response;
-        
-        activateSmartcard();
+        byte[] batch = new byte[MAXSIZEAPDU];
+        byte[] last = new byte[16];
+        CompletableFuture<ResponseAPDU> pending = null, next;
+        int nbAPDU = 0, res, complete, pendingLength = 0;
 
         try {
-            DataInputStream br = new DataInputStream(new FileInputStream(filename));
-            DataOutputStream obr = new DataOutputStream(new FileOutputStream(filename+"_crypt"));
-            byte[] buffer = new byte[0x8];
-            int res = 0;
+            InputStream br = new BufferedInputStream(new FileInputStream(filename));
+            OutputStream obr = new BufferedOutputStream(new FileOutputStream(filename+"_crypt"));
 
             do
             {
-                try {
-                    res = br.read(buffer, 0, 8);
-                } catch (Exception e) {
-                    System.out.println( "Problem with buffer reader" );
+                res = readBlock(br, batch);
+                complete = res - res%8;
+                next = null;
+                if(complete > 0)
+                {
+                    next = this.card.submit(cipherCommand(CIPHERFILEBYCARD, P1, batch, complete));
+                    nbAPDU++;
                 }
-                for(int i = 0; i < 16; i++)
-                    if( i < res)
-                        challengeDES[i] = buffer[i];
-                    else
-                        challengeDES[i] = 0;
-                
-                if(res < 16)
-                    challengeDES[res] = (byte)0x80;
-                
-                response = cipherGeneric(CIPHERFILEBYCARD, P1, challengeDES);
-
-                try {
-                    obr.write(response, 0, response.length);
-                    obr.flush();
-                } catch (Exception e) {
-                    System.out.println( "Problem with buffer writer" );
+                if(pending != null)
+                    writeCipheredChunk(obr, awaitCipher(pending, pendingLength), pendingLength);
+                pending = next;
+                pendingLength = complete;
+                if(res%8 != 0)
+                {
+                    if(pending != null)
+                        writeCipheredChunk(obr, awaitCipher(pending, pendingLength), pendingLength);
+                    pending = null;
+                    // Last chunk, shorter than 8 bytes
+                    Arrays.fill(last, (byte)0);
+                    System.arraycopy(batch, complete, last, 0, res%8);
+                    last[res%8] = (byte)0x80;
+                    obr.write(cipherGeneric(CIPHERFILEBYCARD, P1, last, false));
+                    nbAPDU++;
                 }
-                
-            }while(res == 8);
+            }while(res == batch.length);
+            if(pending != null)
+                writeCipheredChunk(obr, awaitCipher(pending, pendingLength), pendingLength);
             br.close();
             obr.close();
-        } catch( Exception e ) {}
+            System.out.println( "File ciphered by card in " + nbAPDU + " APDU" );
+        } catch( IOException e ) {
+            System.out.println( "Problem while ciphering " + filename + ": " + e.getMessage() );
+        }
 
         System.out.println( "" );
         
+    }
+	
+    /*
+     * Cipher or uncipher length bytes of data with the card, MAXSIZEAPDU bytes per APDU.
+     * The length must be a multiple of 8. The APDUs are submitted as one batch, sent back to back.
+     */
+    private byte[] cipherBlocksByCard(byte typeAPDU, byte[] data, int length) {
+        List<CommandAPDU> commands = new ArrayList<CommandAPDU>();
+        List<ResponseAPDU> responses = null;
+        byte[] result = new byte[length];
+        int offset, size;
+
+        for(offset = 0; offset < length; offset += size)
+        {
+            size = Math.min(MAXSIZEAPDU, length - offset);
+            commands.add(cipherCommand(typeAPDU, P1, Arrays.copyOfRange(data, offset, offset + size), size));
+        }
+        try {
+            responses = this.card.submitAll(commands).join();
+        } catch( CompletionException e ) {
+            System.out.println( "Exception caught in sendAPDU: " + e.getCause().getMessage() );
+            java.lang.System.exit( -1 );
+        }
+        for(offset = 0; offset < length; offset += size)
+        {
+            size = Math.min(MAXSIZEAPDU, length - offset);
+            System.arraycopy(responses.get(offset/MAXSIZEAPDU).getBytes(), 0, result, offset, size);
+        }
+        return result;
+    }
+
+    /*
+     * Send a file in binary frames: it is read, ciphered by the card and written to the socket chunk by chunk,
+     * with neither temporary file nor Base64. The last frame ends with 0x80 then zeros, up to a multiple of 8 bytes.
+     * At most STREAMWINDOW frames are on their way at any time, each acknowledgment of the recipient letting one more go:
+     * neither the server nor the recipient have more than that to hold, whatever the size of the file.
+     * In hybrid mode, each frame is sealed by the session cipher instead, and needs no padding.
+     */
+    private void streamFileByCard(String dest, String filename) {
+        byte[] chunk = new byte[STREAMCHUNK];
+        byte[] frame;
+        int res, length;
+        SessionCipher cipher = hybrid ? sessionCipher : null;
+
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(filename));
+
+            streamAborted = false;
+            streamCredits = new Semaphore(STREAMWINDOW);
+            streamDest = dest;
+            outputNetwork.println("/stream " + dest + " " + filename + (cipher != null ? " gcm" : ""));
+            try {
+                do
+                {
+                    res = readBlock(in, chunk);
+                    // Cipher this chunk while the previous ones are still on their way
+                    if(cipher != null)
+                        frame = seal(cipher, chunk, res);
+                    else
+                    {
+                        length = res;
+                        if(res < chunk.length)
+                        {
+                            length = res - res%8 + 8;
+                            Arrays.fill(chunk, res, length, (byte)0);
+                            chunk[res] = (byte)0x80;
+                        }
+                        frame = cipherBlocksByCard(CIPHERFILEBYCARD, chunk, length);
+                    }
+                    length = frame.length;
+                    waitForCredits(1);
+                    synchronized(outputNetwork) {
+                        outputNetwork.println((res < chunk.length ? "/endchunk " : "/chunk ") + dest + " " + length);
+                        outputNetwork.write(frame, 0, length);
+                        outputNetwork.flush();
+                    }
+                }while(res == chunk.length);
+                // Every frame acknowledged: the recipient has written the whole file
+                waitForCredits(STREAMWINDOW);
+                System.out.println("File " + filename + " sent to " + dest);
+            } finally {
+                streamDest = null;
+                in.close();
+            }
+        } catch( IOException e ) {
+            System.out.println("Transfer of " + filename + " to " + dest + " failed: " + e.getMessage());
+        }
+    }
+
+    private byte[] seal(SessionCipher cipher, byte[] data, int length) throws IOException {
+        try {
+            return cipher.seal(data, 0, length);
+        } catch( GeneralSecurityException e ) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    private void waitForCredits(int nbCredits) throws IOException {
+        try {
+            if(!streamCredits.tryAcquire(nbCredits, STREAMTIMEOUT, TimeUnit.SECONDS))
+                throw new IOException("no acknowledgment from " + streamDest);
+        } catch( InterruptedException e ) {
+            throw new IOException("interrupted");
+        }
+        if(streamAborted)
+            throw new IOException("aborted by " + streamDest);
+    }
+
+    /*
+     * Handle "STREAM <sender> <file>": the unciphered frames that follow are written straight into the file.
+     */
+    private void openStream(String[] textParts) {
         try{
-            SmartCard.shutdown();
-        } catch( Exception e ) {
-            System.out.println( "TheClient error: " + e.getMessage() );
+            File file = new File(textParts[1]+File.separatorChar+textParts[2]);
+            file.getParentFile().mkdirs();
+            OutputStream previous = streamMap.put(textParts[1], new BufferedOutputStream(new FileOutputStream(file)));
+            if(previous != null)
+                previous.close();
+            if(textParts.length > 3 && textParts[3].equals("gcm"))
+                sealedStreams.add(textParts[1]);
+            else
+                sealedStreams.remove(textParts[1]);
+            System.out.println("Receiving " + textParts[2] + " from " + textParts[1]);
+        } catch(ArrayIndexOutOfBoundsException e ) {
+            System.out.println("STREAM transfer initiated without file name");
+        } catch(IOException e ) {
+            System.out.println("Cannot receive " + textParts[2] + ": " + e.getMessage());
+            outputNetwork.println("/abort " + textParts[1]);
         }
     }
+
+    /*
+     * Handle "CHUNK <sender> <length>" or "ENDCHUNK <sender> <length>" and the frame following it:
+     * uncipher it with the card into the file, then let the sender know it may send one more frame.
+     */
+    private void receiveFrame(String[] textParts) throws IOException {
+        byte[] frame = new byte[Integer.parseInt(textParts[2])];
+        OutputStream out = streamMap.get(textParts[1]);
+        int length = frame.length;
+
+        inputNetwork.readFully(frame);
+        if(sealedStreams.contains(textParts[1]) && out != null)
+        {
+            try {
+                frame = sessionCipher.open(frame, 0, length);
+                length = frame.length;
+            } catch( GeneralSecurityException | NullPointerException e ) {
+                System.out.println("Cannot uncipher frame from " + textParts[1]);
+                out = null;
+            }
+        }
+        else if(out != null && length%8 == 0)
+            frame = cipherBlocksByCard(UNCIPHERFILEBYCARD, frame, length);
+        else
+            out = null;
+        if(out == null)
+        {
+            System.out.println("Frame received outside file transfer context");
+            outputNetwork.println("/abort " + textParts[1]);
+            return;
+        }
+        if(textParts[0].equals("ENDCHUNK") && !sealedStreams.contains(textParts[1]))
+        {
+            //Find starting point of padding
+            for(length = frame.length-1; length > 0; length--)
+                if(frame[length] == (byte)0x80)
+                    break;
+        }
+        out.write(frame, 0, length);
+        outputNetwork.println("/ack " + textParts[1]);
+        if(textParts[0].equals("ENDCHUNK"))
+        {
+            out.close();
+            streamMap.remove(textParts[1]);
+            System.out.println("File received from " + textParts[1]);
+        }
+    }
+
+    /*
+     * Read a line from the server, decoded as InputStreamReader does: null at the end of the stream.
+     */
+    private String readNetworkLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+
+        while((b = inputNetwork.read()) != '\n')
+        {
+            if(b < 0)
+                return line.size() > 0 ? line.toString() : null;
+            line.write(b);
+        }
+        String texte = line.toString();
+        return texte.endsWith("\r") ? texte.substring(0, texte.length()-1) : texte;
+    }
 	
+    /*
+     * Derive the key of the session cipher from the nonce sent by the server after authentication:
+     * one APDU, whatever the mode, so that the messages of hybrid clients can always be read.
+     */
+    private void deriveSessionKey(String nonce) {
+        try {
+            sessionCipher = new SessionCipher(cipherGeneric(CIPHERFILEBYCARD, P1, Base64.getDecoder().decode(nonce), false));
+        } catch( GeneralSecurityException | IllegalArgumentException e ) {
+            System.out.println("No session key, messages are ciphered by the card: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Messages sealed by the session cipher are sent as "~" followed by their Base64, which has no "~".
+     */
+    private String cipherMessage(String message) {
+        SessionCipher cipher = sessionCipher;
+        if(hybrid && cipher != null)
+        {
+            try {
+                byte[] mess = message.getBytes();
+                return "~" + Base64.getEncoder().withoutPadding().encodeToString(cipher.seal(mess, 0, mess.length));
+            } catch( GeneralSecurityException e ) {
+                System.out.println("Exception "+e.getMessage());
+            }
+        }
+        return cipherMessageByCard(message);
+    }
+
+    private String uncipherMessage(String message) {
+        if(!message.startsWith("~"))
+            return uncipherMessageByCard(message);
+        try {
+            byte[] mess = Base64.getDecoder().decode(message.substring(1));
+            return new String(sessionCipher.open(mess, 0, mess.length));
+        } catch( GeneralSecurityException | IllegalArgumentException | NullPointerException e ) {
+            return "<cannot uncipher message>";
+        }
+    }
+
     private String uncipherMessageByCard(String message) {
 	    byte[] response;
 	    byte[] unciphered; 
@@ -297,7 +553,6 @@ public class ClientChat extends Thread {
 		
 		System.out.println(message);
 		
-		activateSmartcard();
 
         try{
 			byte[] mess = Base64.getDecoder().decode(message);
@@ -318,11 +573,6 @@ public class ClientChat extends Thread {
 			res = new String(result);
         } catch( Exception e ) {}
 		
-        try{
-            SmartCard.shutdown();
-        } catch( Exception e ) {
-            System.out.println( "TheClient error: " + e.getMessage() );
-        }
 		return res;
     }
 	
@@ -335,7 +585,6 @@ public class ClientChat extends Thread {
 		String res = "";
 		int j = 0, i = 0;
 		
-		activateSmartcard();
 		
         try{
 			for(j = 0; j < mess.length/16; j+=16)
@@ -369,33 +618,54 @@ public class ClientChat extends Thread {
 			System.out.println("Exception "+e.getMessage());
 		}
 		
-        try{
-            SmartCard.shutdown();
-        } catch( Exception e ) {
-            System.out.println( "TheClient error: " + e.getMessage() );
-        }
 		return res;
     }
 
     private byte[] cipherGeneric(byte typeAPDU, byte crypto, byte[] challenge ) {
+        return cipherGeneric(typeAPDU, crypto, challenge, true);
+    }
+
+    /*
+     * Cipher or uncipher the challenge in one APDU: its length must be a multiple of 8, and at most MAXSIZEAPDU.
+     */
+    private byte[] cipherGeneric(byte typeAPDU, byte crypto, byte[] challenge, boolean display ) {
         byte[] result = new byte[challenge.length];
-        byte cmd [] ={CLA_DES,typeAPDU,crypto,P2,(byte)challenge.length};
-        byte  [] cmd_1=new byte[challenge.length+6];
-        System.arraycopy(cmd,(short)0,cmd_1,(short)0,(short)cmd.length);
-        System.arraycopy(challenge,(short)0,cmd_1,(short)5,(short)challenge.length);
-        cmd_1[21]=(byte)challenge.length;
-        CommandAPDU commande=new CommandAPDU(cmd_1);
-        ResponseAPDU resp = this.sendAPDU(commande);
+        ResponseAPDU resp = this.sendAPDU(cipherCommand(typeAPDU, crypto, challenge, challenge.length), display);
         System.arraycopy(resp.getBytes(),0,result,0,challenge.length);
         return result;
     }
+
+    /*
+     * APDU of cipherGeneric for the first length bytes of the challenge.
+     */
+    private CommandAPDU cipherCommand(byte typeAPDU, byte crypto, byte[] challenge, int length ) {
+        byte cmd [] ={CLA_DES,typeAPDU,crypto,P2,(byte)length};
+        byte  [] cmd_1=new byte[length+6];
+        System.arraycopy(cmd,(short)0,cmd_1,(short)0,(short)cmd.length);
+        System.arraycopy(challenge,(short)0,cmd_1,(short)5,(short)length);
+        cmd_1[5+length]=(byte)length;
+        return new CommandAPDU(cmd_1);
+    }
+
+    /*
+     * Response of a submitted cipherCommand, as cipherGeneric gives it.
+     */
+    private byte[] awaitCipher(CompletableFuture<ResponseAPDU> pending, int length ) {
+        byte[] result = new byte[length];
+        try {
+            System.arraycopy(pending.join().getBytes(),0,result,0,length);
+        } catch( CompletionException e ) {
+            System.out.println( "Exception caught in sendAPDU: " + e.getCause().getMessage() );
+            java.lang.System.exit( -1 );
+        }
+        return result;
+    }
     
     private void putServerPublicKey(String modulus, String exponent)
     {
     	byte[] modulus_b = Base64.getDecoder().decode(modulus);
     	byte[] exponent_b = Base64.getDecoder().decode(exponent);
     	
-        activateSmartcard();
 
         try {
 			CommandAPDU apdu;
@@ -424,11 +694,6 @@ public class ClientChat extends Thread {
 
         System.out.println( "" );
         
-        try{
-            SmartCard.shutdown();
-        } catch( Exception e ) {
-            System.out.println( "putServerPublicKey error: " + e.getMessage() );
-        }
     }
     
     private String getClientPublicKey()
@@ -437,7 +702,6 @@ public class ClientChat extends Thread {
 		CommandAPDU apdu;
 		ResponseAPDU resp;
     	
-        activateSmartcard();
 
         try {
 			byte[] mod = new byte[0x80];
@@ -468,11 +732,6 @@ public class ClientChat extends Thread {
 
         System.out.println( "" );
         
-        try{
-            SmartCard.shutdown();
-        } catch( Exception e ) {
-            System.out.println( "getClientPublicKey error: " + e.getMessage() );
-        }
         return clientPub;
     }
     
@@ -483,7 +742,6 @@ public class ClientChat extends Thread {
 		ResponseAPDU resp;
 		byte[] chall = new byte[0x80];
     	
-        activateSmartcard();
 
         try {
 			System.arraycopy(Base64.getDecoder().decode(challenge),0,chall,0,0x80);
@@ -512,11 +770,6 @@ public class ClientChat extends Thread {
 
         System.out.println( "" );
         
-        try{
-            SmartCard.shutdown();
-        } catch( Exception e ) {
-            System.out.println( "respondToChallenge error: " + e.getMessage() );
-        }
         return response;
     }
     
@@ -524,11 +777,11 @@ public class ClientChat extends Thread {
         listenNetwork();
     }
 
-    private void initInputOutput(Socket s){
+    private void initInputOutput(Socket s, BufferedReader console, PrintStream output){
         try{
-            inputConsole = new BufferedReader( new InputStreamReader( System.in ) );
-            inputNetwork = new BufferedReader( new InputStreamReader( s.getInputStream() ) );
-            outputConsole = new PrintStream( System.out );
+            inputConsole = console;
+            inputNetwork = new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+            outputConsole = output;
             outputNetwork = new PrintStream( s.getOutputStream() );
             isAlive = true;
         } catch( IOException e ) {
@@ -592,16 +845,23 @@ public class ClientChat extends Thread {
 							case "/nickname":
 								outputNetwork.println( line );
 								break;
+							case "/stream":
+								try{
+									streamFileByCard(st.nextToken(), st.nextToken());
+								} catch(NoSuchElementException e ) {
+									System.out.println("/stream should be used with user name and file name");
+								}
+								break;
 							case "/msg":
 								if(st.hasMoreTokens())
 								{
 									String header = text + " " + st.nextToken() + " ";
-									outputNetwork.println(header + cipherMessageByCard(line.substring(header.length(), line.length())));
+									outputNetwork.println(header + cipherMessage(line.substring(header.length(), line.length())));
 								}
 								break;
 							default:
 								if(isAuthenticated)
-									outputNetwork.println(cipherMessageByCard(line));
+									outputNetwork.println(cipherMessage(line));
 								else
 								{
 									outputNetwork.println(text);
@@ -623,7 +883,7 @@ public class ClientChat extends Thread {
             OutputStream out = null;
             while(isAlive)
             {
-                line = inputNetwork.readLine();
+                line = readNetworkLine();
                 if(line.length() > 4 && line.substring(0,4).equals("FILE"))
                 {
                     String[] textParts = line.split(" ");
@@ -667,6 +927,24 @@ public class ClientChat extends Thread {
                         transferMap.remove(textParts[1]);
                     }
                     uncipherFileByCard(textParts[1]+File.separatorChar+textParts[2]);
+                }
+                else if(line.startsWith("STREAM "))
+                    openStream(line.split(" "));
+                else if(line.startsWith("CHUNK ") || line.startsWith("ENDCHUNK "))
+                    receiveFrame(line.split(" "));
+                else if(line.startsWith("ACK ") || line.startsWith("ABORT "))
+                {
+                    String[] textParts = line.split(" ");
+                    if(textParts[1].equals(streamDest))
+                    {
+                        if(textParts[0].equals("ABORT"))
+                        {
+                            streamAborted = true;
+                            streamCredits.release(STREAMWINDOW);
+                        }
+                        else
+                            streamCredits.release();
+                    }
                 }
 				else if(line.length() > 8 && line.substring(0,8).equals("[SERVER]"))
                 {
@@ -687,6 +965,8 @@ public class ClientChat extends Thread {
 							// Client to send back new ciphered challenge to server
 							outputNetwork.println(respondToChallenge(textParts[2]));
 						}
+						else if(textParts[1].equals("SESSION"))
+							deriveSessionKey(textParts[2]);
 						else
 						{
 							if(textParts[1].equals("Hello"))
@@ -703,7 +983,7 @@ public class ClientChat extends Thread {
 					{
 						String[] textParts = line.split(" ");
 						if(textParts.length > 3 && textParts[0].equals("[MSG]") && !textParts[1].equals(clientName))
-							outputConsole.println(textParts[1] + " " +textParts[2]+" "+uncipherMessageByCard(textParts[3]));
+							outputConsole.println(textParts[1] + " " +textParts[2]+" "+uncipherMessage(textParts[3]));
 					}
 				}
             }
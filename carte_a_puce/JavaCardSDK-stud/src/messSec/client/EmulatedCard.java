@@ -0,0 +1,198 @@
+package client;
+
+import java.math.BigInteger;
+import java.security.*;
+import java.security.interfaces.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/*
+ * The messSec applet (applet.TheApplet) in plain Java, answering the same APDUs with the same keys:
+ * the DES key, and the RSA key pair which is the one of the server until INS_GENERATE_RSA_KEY.
+ * RSA without padding is done with BigInteger, the results being left-padded to the key length as on the card.
+ * Used by EmulatedCardTerminal, to run the chat client without a reader.
+ */
+class EmulatedCard {
+
+    final static byte CLA_DES                       = (byte)0x00;
+    final static byte CLA_RSA                       = (byte)0x90;
+    final static byte INS_SELECT                    = (byte)0xA4;
+    final static byte CIPHERFILEBYCARD              = (byte)0x12;
+    final static byte UNCIPHERFILEBYCARD            = (byte)0x13;
+    final static byte INS_RSA_ENCRYPT               = (byte)0xA0;
+    final static byte INS_RSA_DECRYPT               = (byte)0xA2;
+    final static byte INS_RSA_SERVER_ENCRYPT        = (byte)0xA4;
+    final static byte INS_GET_PUBLIC_RSA_KEY        = (byte)0xFE;
+    final static byte INS_PUT_PUBLIC_RSA_KEY        = (byte)0xF4;
+    final static byte INS_GENERATE_RSA_KEY          = (byte)0xF6;
+    final static byte INS_PUT_SERVER_PUBLIC_RSA_KEY = (byte)0xF8;
+
+    final static int SW_OK                   = 0x9000;
+    final static int SW_WRONG_LENGTH         = 0x6700;
+    final static int SW_FILE_NOT_FOUND       = 0x6A82;
+    final static int SW_INCORRECT_P1P2       = 0x6A86;
+    final static int SW_INS_NOT_SUPPORTED    = 0x6D00;
+    final static int SW_CLA_NOT_SUPPORTED    = 0x6E00;
+    final static int SW_UNKNOWN              = 0x6F00;
+
+    final static int KEYSIZE = 128;
+    final static byte[] AID = { (byte)0xA0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x62, (byte)0x03, (byte)0x01, (byte)0x0C, (byte)0x06, (byte)0x01 };
+    final static byte[] ATR = { (byte)0x3B, (byte)0x00 };
+    final static byte[] DESKEY = { (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA, (byte)0xCA };
+
+    // Key pair of the applet, which is also the one of the server
+    final static BigInteger MODULUS = new BigInteger(
+        "90081532b36a202f40a7e802ac5dec111dfaf06b1cb7a83919509c44eda95101" +
+        "0f11d6a360a77e95a2fae08d625bf262a264fb39b0f06fa223aebc5dd01a6811" +
+        "a7c71bda17c714ab2592bfcc81657a0890597fc4f9439caabee4f8fb03743dfb" +
+        "597a56a319664377cc5aae21f520a1228f3cdfd203e9c238e7d938ef358248b7", 16 );
+    final static BigInteger PRIVATE_EXPONENT = new BigInteger(
+        "69df6725a3b888fbf2fcf990ad7f44bdb859f34be90a1f800959b5e4fd060ee3" +
+        "465e887603e05b2e47653e96ef0c4379b9819d21e52c7802a9541266ab481de2" +
+        "6e1d7db2ce7a3fbb34f2465f737cbaf8c129978567df8287896142cc1dcc03ce" +
+        "417d8f25c161fe064f1af24855d86ec63f6de1cea9289e032d74591cdb18b341", 16 );
+    final static BigInteger PUBLIC_EXPONENT = BigInteger.valueOf( 65537 );
+
+    private boolean selected = false;
+    private Cipher desEncrypt, desDecrypt;
+    private BigInteger modulus = MODULUS, publicExponent = PUBLIC_EXPONENT, privateExponent = PRIVATE_EXPONENT;
+    private BigInteger serverModulus = MODULUS, serverExponent = PUBLIC_EXPONENT;
+
+    EmulatedCard() {
+        try {
+            SecretKey key = new SecretKeySpec( DESKEY, "DES" );
+            desEncrypt = Cipher.getInstance( "DES/ECB/NoPadding" );
+            desDecrypt = Cipher.getInstance( "DES/ECB/NoPadding" );
+            desEncrypt.init( Cipher.ENCRYPT_MODE, key );
+            desDecrypt.init( Cipher.DECRYPT_MODE, key );
+        } catch( GeneralSecurityException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /*
+     * Answer a command APDU: the response data followed by the status word.
+     */
+    synchronized byte[] process( byte[] apdu ) {
+        if( apdu.length < 4 )
+            return status( SW_WRONG_LENGTH );
+        int lc = apdu.length > 5 ? apdu[4] & 0xFF : 0;
+        if( apdu.length < 5 + lc )
+            return status( SW_WRONG_LENGTH );
+
+        if( apdu[0] == CLA_DES && apdu[1] == INS_SELECT ) {
+            selected = lc == AID.length && MessageDigest.isEqual( AID, slice( apdu, 5, lc ) );
+            return status( selected ? SW_OK : SW_FILE_NOT_FOUND );
+        }
+        if( !selected )
+            return status( SW_INS_NOT_SUPPORTED );
+        if( apdu[0] != CLA_RSA && apdu[0] != CLA_DES )
+            return status( SW_CLA_NOT_SUPPORTED );
+
+        byte[] data = slice( apdu, 5, lc );
+        try {
+            switch( apdu[1] ) {
+                case CIPHERFILEBYCARD:
+                    return response( desEncrypt.doFinal( data ) );
+                case UNCIPHERFILEBYCARD:
+                    return response( desDecrypt.doFinal( data ) );
+                case INS_GENERATE_RSA_KEY:
+                    generateRSAKey();
+                    return status( SW_OK );
+                case INS_RSA_ENCRYPT:
+                    return rsa( data, publicExponent, modulus );
+                case INS_RSA_DECRYPT:
+                    return rsa( data, privateExponent, modulus );
+                case INS_RSA_SERVER_ENCRYPT:
+                    return rsa( data, serverExponent, serverModulus );
+                case INS_GET_PUBLIC_RSA_KEY:
+                    if( apdu[3] == 0 )
+                        return keyElement( modulus, KEYSIZE );
+                    if( apdu[3] == 1 )
+                        return keyElement( publicExponent, (publicExponent.bitLength()+7)/8 );
+                    return status( SW_INCORRECT_P1P2 );
+                case INS_PUT_PUBLIC_RSA_KEY:
+                case INS_PUT_SERVER_PUBLIC_RSA_KEY:
+                    return putPublicKey( apdu[1] == INS_PUT_SERVER_PUBLIC_RSA_KEY, apdu[2], data );
+                default:
+                    return status( SW_INS_NOT_SUPPORTED );
+            }
+        } catch( GeneralSecurityException e ) {
+            // A length which is not a multiple of the DES block
+            return status( SW_UNKNOWN );
+        }
+    }
+
+    private void generateRSAKey() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance( "RSA" );
+        generator.initialize( KEYSIZE*8 );
+        KeyPair pair = generator.generateKeyPair();
+        modulus = ((RSAPublicKey)pair.getPublic()).getModulus();
+        publicExponent = ((RSAPublicKey)pair.getPublic()).getPublicExponent();
+        privateExponent = ((RSAPrivateKey)pair.getPrivate()).getPrivateExponent();
+    }
+
+    private byte[] rsa( byte[] data, BigInteger exponent, BigInteger mod ) {
+        BigInteger value = new BigInteger( 1, data );
+        if( value.compareTo( mod ) >= 0 )
+            return status( SW_UNKNOWN );
+        return response( unsigned( value.modPow( exponent, mod ), KEYSIZE ) );
+    }
+
+    private byte[] keyElement( BigInteger element, int length ) {
+        byte[] bytes = unsigned( element, length );
+        byte[] result = new byte[1 + bytes.length];
+        result[0] = (byte)bytes.length;
+        System.arraycopy( bytes, 0, result, 1, bytes.length );
+        return response( result );
+    }
+
+    private byte[] putPublicKey( boolean server, byte element, byte[] data ) {
+        if( element != 0 && element != 1 )
+            return status( SW_INCORRECT_P1P2 );
+        if( element == 0 && data.length != KEYSIZE )
+            return status( SW_WRONG_LENGTH );
+        BigInteger value = new BigInteger( 1, data );
+        if( server ) {
+            if( element == 0 )
+                serverModulus = value;
+            else
+                serverExponent = value;
+        } else {
+            if( element == 0 )
+                modulus = value;
+            else
+                publicExponent = value;
+        }
+        return status( SW_OK );
+    }
+
+    /*
+     * The value on exactly length bytes, without the sign byte of BigInteger.
+     */
+    private static byte[] unsigned( BigInteger value, int length ) {
+        byte[] bytes = value.toByteArray();
+        byte[] result = new byte[length];
+        int count = Math.min( length, bytes.length );
+        System.arraycopy( bytes, bytes.length - count, result, length - count, count );
+        return result;
+    }
+
+    private static byte[] slice( byte[] bytes, int offset, int length ) {
+        byte[] result = new byte[length];
+        System.arraycopy( bytes, offset, result, 0, length );
+        return result;
+    }
+
+    private static byte[] response( byte[] data ) {
+        byte[] result = new byte[data.length + 2];
+        System.arraycopy( data, 0, result, 0, data.length );
+        result[data.length] = (byte)(SW_OK >> 8);
+        result[data.length + 1] = (byte)SW_OK;
+        return result;
+    }
+
+    private static byte[] status( int sw ) {
+        return new byte[] { (byte)(sw >> 8), (byte)sw };
+    }
+}
@@ -0,0 +1,55 @@
+package client;
+
+import opencard.core.terminal.*;
+
+/*
+ * Card reader holding an EmulatedCard in its only slot, the card being inserted as long as the reader is open.
+ * Created by EmulatedCardTerminalFactory from the OpenCard configuration.
+ */
+public class EmulatedCardTerminal extends CardTerminal {
+
+    private volatile EmulatedCard card = new EmulatedCard();
+    private boolean opened = false;
+
+    protected EmulatedCardTerminal( String name, String type, String address ) throws CardTerminalException {
+        super( name, type, address );
+        addSlots( 1 );
+    }
+
+    public synchronized void open() {
+        opened = true;
+        cardInserted( 0 );
+    }
+
+    public synchronized void close() {
+        opened = false;
+        cardRemoved( 0 );
+    }
+
+    public synchronized boolean isCardPresent( int slotID ) throws CardTerminalException {
+        if( slotID != 0 )
+            throw new IndexOutOfBoundsException( "Wrong slotID: only 0 is allowed." );
+        return opened;
+    }
+
+    public synchronized CardID getCardID( int slotID ) throws CardTerminalException {
+        if( !isCardPresent( slotID ) )
+            return null;
+        return new CardID( this, slotID, EmulatedCard.ATR );
+    }
+
+    protected synchronized CardID internalReset( int slotID, int ms ) throws CardTerminalException {
+        if( !isCardPresent( slotID ) )
+            throw new CardTerminalException( "no card inserted" );
+        card = new EmulatedCard();
+        return getCardID( slotID );
+    }
+
+    protected ResponseAPDU internalSendAPDU( int slotID, CommandAPDU capdu, int ms ) throws CardTerminalException {
+        if( !isCardPresent( slotID ) )
+            throw new CardTerminalException( "no card inserted" );
+        byte[] command = new byte[capdu.getLength()];
+        System.arraycopy( capdu.getBuffer(), 0, command, 0, command.length );
+        return new ResponseAPDU( card.process( command ) );
+    }
+}
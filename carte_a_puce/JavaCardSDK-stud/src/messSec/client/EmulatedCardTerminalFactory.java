@@ -0,0 +1,35 @@
+package client;
+
+import opencard.core.terminal.*;
+
+/*
+ * Readers with an emulated messSec card, declared in opencard.properties as
+ *    OpenCard.terminals = client.EmulatedCardTerminalFactory|<name>|Emulated|<nb_readers>
+ * The readers are named <name>0, <name>1... when there are several of them: LoadChat gives one to each user.
+ */
+public class EmulatedCardTerminalFactory implements CardTerminalFactory {
+
+    public void createCardTerminals( CardTerminalRegistry ctr, String[] infos ) throws CardTerminalException, TerminalInitException {
+        int nbTerminals = 1;
+
+        if( infos.length < 2 || !infos[TERMINAL_TYPE_ENTRY].equals( "Emulated" ) )
+            throw new TerminalInitException( "Type unknown: " + (infos.length < 2 ? "none" : infos[TERMINAL_TYPE_ENTRY]) );
+        try {
+            if( infos.length > 2 )
+                nbTerminals = Integer.parseInt( infos[TERMINAL_ADDRESS_ENTRY] );
+        } catch( NumberFormatException e ) {
+            throw new TerminalInitException( "Number of readers expected instead of " + infos[TERMINAL_ADDRESS_ENTRY] );
+        }
+        if( nbTerminals == 1 )
+            ctr.add( new EmulatedCardTerminal( infos[TERMINAL_NAME_ENTRY], infos[TERMINAL_TYPE_ENTRY], "" ) );
+        else
+            for( int i = 0; i < nbTerminals; i++ )
+                ctr.add( new EmulatedCardTerminal( infos[TERMINAL_NAME_ENTRY] + i, infos[TERMINAL_TYPE_ENTRY], "" + i ) );
+    }
+
+    public void open() {
+    }
+
+    public void close() {
+    }
+}
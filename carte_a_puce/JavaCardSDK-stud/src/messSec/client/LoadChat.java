@@ -0,0 +1,254 @@
+package client;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import opencard.core.service.*;
+import opencard.core.terminal.*;
+
+/*
+ * Load generator for the chat server, run as a plain program:
+ * java client.LoadChat [-a <address>] [-p <port>] [-u <nb_users>] [-m <nb_messages>] [-w <wait_ms>] [-c card|hybrid]
+ * Each user is a ClientChat with its own emulated card (EmulatedCardTerminal), so that hundreds of them
+ * log in and chat from one machine without any reader. The users log in together, then each broadcasts
+ * its messages, and the report gives the login (handshake) and delivery latencies seen by the clients.
+ * The server must accept that many clients: java server.ServerChatNIO <port> drop <max_clients>
+ */
+public class LoadChat {
+
+    final static String USAGE = "Args error, please use the exe as follows:\n"+
+                                "-a <address>     : address of the server, default is localhost\n"+
+                                "-p <port>        : port of the server, default is 2222\n"+
+                                "-u <nb_users>    : users connected together, default is 100\n"+
+                                "-m <nb_messages> : messages broadcast by each user, default is 10\n"+
+                                "-w <wait_ms>     : pause between the messages of a user, default is 100\n"+
+                                "-c card|hybrid   : ciphering of the messages, default is card";
+
+    // Longest wait for a login, or for the messages still on their way at the end
+    final static long TIMEOUT = 60000;
+    // Short enough to hold in one DES block when ciphered by the card
+    final static String PING = "ping:";
+
+    String address = "localhost";
+    int port = 2222;
+    int nbUsers = 100;
+    int nbMessages = 10;
+    int waitTime = 100;
+    String mode = "card";
+
+    // Sending time of each message, by number
+    long[] sentTimes;
+    final List<Long> loginLatencies = new ArrayList<Long>();
+    final List<Long> deliveryLatencies = new ArrayList<Long>();
+    long lastDelivery;
+    CountDownLatch loggedIn, sent, done;
+
+    /*
+     * Console of a simulated user: the lines typed by its driver.
+     */
+    static class TypedConsole extends BufferedReader {
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+
+        TypedConsole() {
+            super( new StringReader( "" ) );
+        }
+
+        void type( String line ) {
+            lines.add( line );
+        }
+
+        public String readLine() throws IOException {
+            try {
+                return lines.take();
+            } catch( InterruptedException e ) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /*
+     * Chat window of a simulated user, where the welcome of the server and the messages of the others are timed.
+     */
+    class Probe extends PrintStream {
+        final CountDownLatch welcome = new CountDownLatch( 1 );
+        long loginStart;
+
+        Probe() {
+            super( new NullOutputStream() );
+        }
+
+        public void println( String line ) {
+            long now = System.nanoTime();
+            int ping = line.indexOf( PING );
+            if( line.startsWith( "[SERVER] Hello" ) && welcome.getCount() > 0 )
+            {
+                record( loginLatencies, now - loginStart );
+                welcome.countDown();
+            }
+            else if( ping >= 0 )
+            {
+                // The message ciphered by the card comes back padded with zeros
+                String number = line.substring( ping + PING.length() ).replaceAll( "[^0-9]", "" );
+                try {
+                    record( deliveryLatencies, now - sentTimes[Integer.parseInt( number )] );
+                    synchronized( LoadChat.this ) {
+                        lastDelivery = Math.max( lastDelivery, now );
+                    }
+                } catch( RuntimeException e ) {}
+            }
+        }
+    }
+
+    static class NullOutputStream extends OutputStream {
+        public void write( int b ) {}
+        public void write( byte[] b, int off, int len ) {}
+    }
+
+    void record( List<Long> latencies, long nanos ) {
+        synchronized( latencies ) {
+            latencies.add( nanos/1000 );
+        }
+    }
+
+    /*
+     * One simulated user: the client runs in its own thread, while this one types for it.
+     */
+    void user( final int index, final CardTerminal terminal ) {
+        final TypedConsole console = new TypedConsole();
+        final Probe probe = new Probe();
+        final String[] args = { address, ""+port, mode };
+
+        new Thread( new Runnable() {
+            public void run() {
+                new ClientChat( args, console, probe, new CardSession( ClientChat.SELECT_APPLET, terminal ) );
+            }
+        }, "user"+index ).start();
+
+        new Thread( new Runnable() {
+            public void run() {
+                try {
+                    probe.loginStart = System.nanoTime();
+                    console.type( "load"+index );
+                    boolean logged = probe.welcome.await( TIMEOUT, TimeUnit.MILLISECONDS );
+                    loggedIn.countDown();
+                    loggedIn.await();
+                    if( logged )
+                        for( int i = 0; i < nbMessages; i++ )
+                        {
+                            int number = index*nbMessages + i;
+                            sentTimes[number] = System.nanoTime();
+                            console.type( PING + number );
+                            Thread.sleep( waitTime );
+                        }
+                    sent.countDown();
+                    // Everybody stays until the last messages are delivered
+                    done.await();
+                } catch( InterruptedException e ) {}
+                console.type( "/quit" );
+            }
+        }, "driver"+index ).start();
+    }
+
+    void run() throws Exception {
+        List<CardTerminal> terminals = new ArrayList<CardTerminal>();
+        PrintStream out = System.out;
+        long start, elapsed;
+
+        // OCF is configured here rather than by an opencard.properties file
+        System.setProperty( "OpenCard.loaderClassName", "" );
+        System.setProperty( "OpenCard.services", "opencard.opt.util.PassThruCardServiceFactory" );
+        System.setProperty( "OpenCard.terminals", "client.EmulatedCardTerminalFactory|Emulator|Emulated|"+nbUsers );
+        SmartCard.start();
+        Enumeration<?> registered = CardTerminalRegistry.getRegistry().getCardTerminals();
+        while( registered.hasMoreElements() )
+            terminals.add( (CardTerminal)registered.nextElement() );
+
+        out.println( nbUsers+" users on "+address+":"+port+", "+nbMessages+" "+mode+" messages each" );
+        // The clients trace every APDU on the standard output
+        System.setOut( new PrintStream( new NullOutputStream() ) );
+        sentTimes = new long[nbUsers*nbMessages];
+        loggedIn = new CountDownLatch( nbUsers );
+        sent = new CountDownLatch( nbUsers );
+        done = new CountDownLatch( 1 );
+
+        start = System.nanoTime();
+        for( int i = 0; i < nbUsers; i++ )
+            user( i, terminals.get( i ) );
+        loggedIn.await();
+        elapsed = System.nanoTime() - start;
+        out.println( "Logins: "+loginLatencies.size()+" of "+nbUsers+" in "+String.format( "%.2f", elapsed/1e9 )+" s, "+
+                     String.format( "%.1f", loginLatencies.size()*1e9/elapsed )+" handshakes/s, "+percentiles( loginLatencies ) );
+
+        start = System.nanoTime();
+        sent.await();
+        // Each message goes to every other user
+        int expected = loginLatencies.size()*(loginLatencies.size()-1)*nbMessages;
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while( deliveryLatencies.size() < expected && System.currentTimeMillis() < deadline )
+            Thread.sleep( 100 );
+        synchronized( this ) {
+            elapsed = Math.max( 1, lastDelivery - start );
+        }
+        out.println( "Messages: "+loginLatencies.size()*nbMessages+" sent, "+deliveryLatencies.size()+" of "+expected+" delivered, "+
+                     String.format( "%.0f", deliveryLatencies.size()*1e9/elapsed )+" deliveries/s, "+percentiles( deliveryLatencies ) );
+        done.countDown();
+        Thread.sleep( 1000 );
+        SmartCard.shutdown();
+        System.setOut( out );
+    }
+
+    String percentiles( List<Long> latencies ) {
+        List<Long> sorted;
+        synchronized( latencies ) {
+            sorted = new ArrayList<Long>( latencies );
+        }
+        if( sorted.isEmpty() )
+            return "no latency";
+        Collections.sort( sorted );
+        return "latency p50 "+sorted.get( sorted.size()/2 )/1000+" ms, p99 "+sorted.get( (int)(sorted.size()*0.99) )/1000+" ms";
+    }
+
+    public static void main( String[] args ) {
+        LoadChat load = new LoadChat();
+
+        if(args.length%2 != 0)
+        {
+            System.out.println(USAGE);
+            return;
+        }
+        for(int i = 0; i < args.length/2; i++)
+        {
+            try
+            {
+                if(args[2*i].equals("-a"))
+                    load.address = args[2*i+1];
+                else if(args[2*i].equals("-p"))
+                    load.port = Integer.parseInt(args[2*i+1]);
+                else if(args[2*i].equals("-u"))
+                    load.nbUsers = Integer.parseInt(args[2*i+1]);
+                else if(args[2*i].equals("-m"))
+                    load.nbMessages = Integer.parseInt(args[2*i+1]);
+                else if(args[2*i].equals("-w"))
+                    load.waitTime = Integer.parseInt(args[2*i+1]);
+                else if(args[2*i].equals("-c") && (args[2*i+1].equals("card") || args[2*i+1].equals("hybrid")))
+                    load.mode = args[2*i+1];
+                else
+                {
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+            catch(NumberFormatException numE){
+                System.out.println("Please enter an integer after "+args[2*i]);
+                return;
+            }
+        }
+
+        try {
+            load.run();
+        } catch( Exception e ) {
+            System.out.println( "LoadChat error: " + e.getMessage() );
+        }
+        System.exit( 0 );
+    }
+}
@@ -0,0 +1,51 @@
+package client;
+
+import java.security.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/*
+ * Host-side cipher of the hybrid mode: AES-GCM, with a key derived once per chat session by the card.
+ * The server sends the same nonce to every client, the card ciphers it with its DES key, which never
+ * leaves the card, and the key is the SHA-256 of the result cut to 128 bits: all the cards of the chat
+ * get the same key, while the server does not know it.
+ * Ciphered data is a random 12-byte IV, followed by the ciphertext and its 16-byte tag.
+ */
+public class SessionCipher {
+
+    final static int IVSIZE = 12;
+    final static int TAGSIZE = 16;
+
+    private SecretKeySpec key;
+    private SecureRandom random = new SecureRandom();
+    private Cipher encrypt, decrypt;
+
+    public SessionCipher( byte[] cardSecret ) throws GeneralSecurityException {
+        byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( cardSecret );
+
+        key = new SecretKeySpec( digest, 0, 16, "AES" );
+        encrypt = Cipher.getInstance( "AES/GCM/NoPadding" );
+        decrypt = Cipher.getInstance( "AES/GCM/NoPadding" );
+    }
+
+    public synchronized byte[] seal( byte[] data, int offset, int length ) throws GeneralSecurityException {
+        byte[] result = new byte[IVSIZE + length + TAGSIZE];
+        byte[] iv = new byte[IVSIZE];
+
+        random.nextBytes( iv );
+        System.arraycopy( iv, 0, result, 0, IVSIZE );
+        encrypt.init( Cipher.ENCRYPT_MODE, key, new GCMParameterSpec( TAGSIZE*8, iv ) );
+        encrypt.doFinal( data, offset, length, result, IVSIZE );
+        return result;
+    }
+
+    /*
+     * Uncipher what seal() produced: fails with AEADBadTagException if it has been altered, or ciphered with another key.
+     */
+    public synchronized byte[] open( byte[] data, int offset, int length ) throws GeneralSecurityException {
+        if( length < IVSIZE + TAGSIZE )
+            throw new AEADBadTagException( "ciphered data too short" );
+        decrypt.init( Cipher.DECRYPT_MODE, key, new GCMParameterSpec( TAGSIZE*8, data, offset, IVSIZE ) );
+        return decrypt.doFinal( data, offset + IVSIZE, length - IVSIZE );
+    }
+}
@@ -0,0 +1,170 @@
+package server;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/*
+ * Counters of the chat server, gathered with those of HandshakePool and Outbox, for the /stats
+ * console command and for JMX. They are only atomic increments on the paths of the messages.
+ * A sampler turns the counters into rates over the last second.
+ */
+class ChatMetrics implements ChatMetricsMBean {
+
+    final static String NAME = "server:type=ChatMetrics";
+
+    final static AtomicLong nbConnections = new AtomicLong();
+    final static AtomicLong nbAuthSuccesses = new AtomicLong();
+    final static AtomicLong nbAuthFailures = new AtomicLong();
+    final static AtomicLong nbMessages = new AtomicLong();
+    final static AtomicLong nbFileTransfers = new AtomicLong();
+    final static AtomicLong nbFileBytes = new AtomicLong();
+    // Time taken to process a line of an authenticated client, queueing of the messages included
+    final static LatencyHistogram routing = new LatencyHistogram();
+
+    private final static long startTime = System.currentTimeMillis();
+    private static ScheduledExecutorService sampler;
+    private static volatile double messagesPerSecond, bytesPerSecond, fileBytesPerSecond;
+    private static long lastMessages, lastBytes, lastFileBytes;
+
+    /*
+     * Register the MBean and start sampling the rates.
+     */
+    static synchronized void start() {
+        if( sampler != null )
+            return;
+        sampler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+            public Thread newThread( Runnable r ) {
+                Thread thread = new Thread( r, "metrics" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        } );
+        sampler.scheduleAtFixedRate( new Runnable() {
+            public void run() {
+                sample();
+            }
+        }, 1, 1, TimeUnit.SECONDS );
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean( new ChatMetrics(), new ObjectName( NAME ) );
+        } catch( JMException e ) {
+            System.out.println( "Metrics not available through JMX: " + e.getMessage() );
+        }
+    }
+
+    private static void sample() {
+        long messages = nbMessages.get();
+        long bytes = Outbox.nbBytes.get();
+        long fileBytes = nbFileBytes.get();
+
+        messagesPerSecond = messages - lastMessages;
+        bytesPerSecond = bytes - lastBytes;
+        fileBytesPerSecond = fileBytes - lastFileBytes;
+        lastMessages = messages;
+        lastBytes = bytes;
+        lastFileBytes = fileBytes;
+    }
+
+    static void print( PrintStream out ) {
+        ChatMetrics metrics = new ChatMetrics();
+
+        out.println( "Uptime " + (System.currentTimeMillis() - startTime)/1000 + " s, " + metrics.getConnections() + " connections, " +
+                     metrics.getConnectedClients() + " clients connected" );
+        out.println( "Authentication: " + metrics.getAuthSuccesses() + " successes, " + metrics.getAuthFailures() + " failures, " +
+                     metrics.getAuthRefused() + " refused (server busy or rate limited)" );
+        out.println( "Messages: " + metrics.getMessages() + " routed, " + String.format( "%.0f", metrics.getMessagesPerSecond() ) + "/s" );
+        out.println( "Relayed: " + metrics.getBytesRelayed() + " bytes, " + String.format( "%.0f", metrics.getBytesPerSecond() ) + " bytes/s" );
+        out.println( "Files: " + metrics.getFileTransfers() + " transfers, " + metrics.getFileBytes() + " bytes, " +
+                     String.format( "%.0f", metrics.getFileBytesPerSecond() ) + " bytes/s" );
+        out.println( "Routing latency:" );
+        routing.print( out );
+        HandshakePool.printStats( out );
+        ServiceChat.showOutboxes( out );
+    }
+
+    public long getConnections() {
+        return nbConnections.get();
+    }
+
+    public int getConnectedClients() {
+        return ServiceChat.getNbClients();
+    }
+
+    public long getAuthSuccesses() {
+        return nbAuthSuccesses.get();
+    }
+
+    public long getAuthFailures() {
+        return nbAuthFailures.get();
+    }
+
+    public long getAuthRefused() {
+        return HandshakePool.nbRejected.get() + HandshakePool.nbLimited.get();
+    }
+
+    public long getMessages() {
+        return nbMessages.get();
+    }
+
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public long getRoutingLatencyP50() {
+        return routing.getPercentile( 0.5 );
+    }
+
+    public long getRoutingLatencyP99() {
+        return routing.getPercentile( 0.99 );
+    }
+
+    public long getBytesRelayed() {
+        return Outbox.nbBytes.get();
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getMessagesDropped() {
+        return Outbox.nbDropped.get();
+    }
+
+    public long getSlowClientsDisconnected() {
+        return Outbox.nbDisconnected.get();
+    }
+
+    public long getFileTransfers() {
+        return nbFileTransfers.get();
+    }
+
+    public long getFileBytes() {
+        return nbFileBytes.get();
+    }
+
+    public double getFileBytesPerSecond() {
+        return fileBytesPerSecond;
+    }
+
+    public long getHandshakes() {
+        return HandshakePool.getCompleted();
+    }
+
+    public int getHandshakeQueueDepth() {
+        return HandshakePool.getQueueDepth();
+    }
+
+    public long getHandshakeLatencyP50() {
+        return HandshakePool.latencies.getPercentile( 0.5 );
+    }
+
+    public long getHandshakeLatencyP99() {
+        return HandshakePool.latencies.getPercentile( 0.99 );
+    }
+
+    public String[] getQueueDepths() {
+        return ServiceChat.queueDepths();
+    }
+}
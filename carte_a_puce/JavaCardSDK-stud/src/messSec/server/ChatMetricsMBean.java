@@ -0,0 +1,35 @@
+package server;
+
+/*
+ * Metrics of the chat server seen through JMX, under server:type=ChatMetrics (jconsole, VisualVM...).
+ * Rates are measured over the last second, latencies are in microseconds.
+ */
+public interface ChatMetricsMBean {
+
+    long getConnections();
+    int getConnectedClients();
+    long getAuthSuccesses();
+    long getAuthFailures();
+    long getAuthRefused();
+
+    long getMessages();
+    double getMessagesPerSecond();
+    long getRoutingLatencyP50();
+    long getRoutingLatencyP99();
+
+    long getBytesRelayed();
+    double getBytesPerSecond();
+    long getMessagesDropped();
+    long getSlowClientsDisconnected();
+
+    long getFileTransfers();
+    long getFileBytes();
+    double getFileBytesPerSecond();
+
+    long getHandshakes();
+    int getHandshakeQueueDepth();
+    long getHandshakeLatencyP50();
+    long getHandshakeLatencyP99();
+
+    String[] getQueueDepths();
+}
@@ -0,0 +1,136 @@
+package server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * Workers running the RSA work of the authentication handshakes, so that it never holds up the
+ * thread routing messages: the connection thread, or the event loop of ServerChatNIO.
+ * The queue is bounded: when it is full, the handshake is refused and the client asked to retry,
+ * rather than piling up logins the server cannot serve in time.
+ * Each user may also start at most BURST handshakes from a given address, then one more every REFILL
+ * milliseconds: a client claiming the name of someone else only spends the tokens of its own address.
+ * Every SWEEP milliseconds, the buckets full again are forgotten, so invented names do not pile up.
+ */
+class HandshakePool {
+
+    final static int NBWORKERS = Runtime.getRuntime().availableProcessors();
+    final static int QUEUESIZE = 256;
+    final static int BURST = 5;
+    final static long REFILL = 10000;
+    final static long SWEEP = 60000;
+
+    private final static ThreadPoolExecutor executor = new ThreadPoolExecutor( NBWORKERS, NBWORKERS, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>( QUEUESIZE ),
+        new ThreadFactory() {
+            public Thread newThread( Runnable r ) {
+                Thread worker = new Thread( r, "handshake" );
+                worker.setDaemon( true );
+                return worker;
+            }
+        } );
+
+    private final static ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private final static AtomicLong lastSweep = new AtomicLong( System.currentTimeMillis() );
+    // Time from the queueing of a handshake step to its end
+    final static LatencyHistogram latencies = new LatencyHistogram();
+    final static AtomicLong nbRejected = new AtomicLong();
+    final static AtomicLong nbLimited = new AtomicLong();
+
+    /*
+     * Handshakes a user may still start, refilled with time.
+     */
+    private static class Bucket {
+        double tokens = BURST;
+        long last = System.currentTimeMillis();
+
+        synchronized boolean take( long now ) {
+            refill( now );
+            if( tokens < 1 )
+                return false;
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull( long now ) {
+            refill( now );
+            return tokens >= BURST;
+        }
+
+        private void refill( long now ) {
+            tokens = Math.min( BURST, tokens + (double)(now - last)/REFILL );
+            last = now;
+        }
+    }
+
+    /*
+     * Whether the user may start one more handshake now from this address.
+     */
+    static boolean allow( String user, String address ) {
+        String key = user + "@" + address;
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+
+        if( now - last >= SWEEP && lastSweep.compareAndSet( last, now ) )
+            sweep( now );
+        Bucket bucket = buckets.get( key );
+        if( bucket == null ) {
+            Bucket created = new Bucket();
+            bucket = buckets.putIfAbsent( key, created );
+            if( bucket == null )
+                bucket = created;
+        }
+        if( bucket.take( now ) )
+            return true;
+        nbLimited.incrementAndGet();
+        return false;
+    }
+
+    /*
+     * Forget the buckets full again: a new one, full as well, is made on the next handshake.
+     */
+    private static void sweep( long now ) {
+        for( Map.Entry<String, Bucket> entry : buckets.entrySet() )
+            if( entry.getValue().isFull( now ) )
+                buckets.remove( entry.getKey(), entry.getValue() );
+    }
+
+    /*
+     * Queue the handshake step, or return false when the queue is full.
+     */
+    static boolean submit( final Runnable step ) {
+        final long start = System.nanoTime();
+        try {
+            executor.execute( new Runnable() {
+                public void run() {
+                    try {
+                        step.run();
+                    } finally {
+                        latencies.recordSince( start );
+                    }
+                }
+            } );
+            return true;
+        } catch( RejectedExecutionException e ) {
+            nbRejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    static long getCompleted() {
+        return executor.getCompletedTaskCount();
+    }
+
+    static int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    static void printStats( PrintStream out ) {
+        out.println( "Handshakes: " + executor.getCompletedTaskCount() + " done, " + executor.getActiveCount() + " running, " +
+                     getQueueDepth() + " queued (max " + QUEUESIZE + "), " + nbRejected.get() + " refused, " + nbLimited.get() + " rate limited" );
+        out.println( "Handshake latency, queueing included:" );
+        latencies.print( out );
+    }
+}
@@ -0,0 +1,51 @@
+package server;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * Durations counted in power of 2 buckets: bucket i counts those shorter than 2^i microseconds.
+ * Recording is lock-free, so that it can be done on every message.
+ */
+class LatencyHistogram {
+
+    final static int NBBUCKETS = 25;
+
+    private final AtomicLongArray buckets = new AtomicLongArray( NBBUCKETS );
+
+    void record( long micros ) {
+        int bucket = 64 - Long.numberOfLeadingZeros( micros );
+        buckets.incrementAndGet( Math.min( bucket, NBBUCKETS-1 ) );
+    }
+
+    void recordSince( long startNanos ) {
+        record( (System.nanoTime() - startNanos)/1000 );
+    }
+
+    long getCount() {
+        long count = 0;
+        for( int i = 0; i < NBBUCKETS; i++ )
+            count += buckets.get( i );
+        return count;
+    }
+
+    /*
+     * Upper bound of the given fraction of the durations, in microseconds: 0 when nothing is recorded.
+     */
+    long getPercentile( double fraction ) {
+        long count = getCount();
+        long seen = 0;
+        for( int i = 0; i < NBBUCKETS && count > 0; i++ ) {
+            seen += buckets.get( i );
+            if( seen >= fraction*count )
+                return 1L << i;
+        }
+        return 0;
+    }
+
+    void print( PrintStream out ) {
+        for( int i = 0; i < NBBUCKETS; i++ )
+            if( buckets.get( i ) > 0 )
+                out.println( String.format( "  < %8d us: %d", 1L << i, buckets.get( i ) ) );
+    }
+}
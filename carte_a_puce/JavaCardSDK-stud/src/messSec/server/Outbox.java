@@ -0,0 +1,183 @@
+package server;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * Messages waiting to be written to one client.
+ * Senders only queue the bytes of their messages, already encoded: a broadcast encodes its line once,
+ * and queues the same bytes for every client. A writer task drains the queue of each client with
+ * pending messages, so a client not reading its socket only stalls its own writer, never the senders.
+ * When more than MAXQUEUED bytes wait for a client, new messages are dropped, or the client is
+ * disconnected, as chosen on the command line of the server.
+ * The connections of ServerChatNIO never block: they are written by the sender, and queue on their own.
+ */
+class Outbox {
+
+    final static int MAXQUEUED = 1024*1024;
+    // Time given to a closed client to read its last messages
+    final static long CLOSEDELAY = 5000;
+    static boolean disconnectSlowClients = true;
+
+    private final static ThreadFactory daemons = new ThreadFactory() {
+        public Thread newThread( Runnable r ) {
+            Thread writer = new Thread( r, "outbox" );
+            writer.setDaemon( true );
+            return writer;
+        }
+    };
+    private final static ExecutorService writers = Executors.newCachedThreadPool( daemons );
+    private final static ScheduledExecutorService closer = Executors.newSingleThreadScheduledExecutor( daemons );
+
+    final static AtomicLong nbMessages = new AtomicLong();
+    final static AtomicLong nbBytes = new AtomicLong();
+    final static AtomicLong nbDropped = new AtomicLong();
+    final static AtomicLong nbDisconnected = new AtomicLong();
+
+    private OutputStream out;
+    private Closeable connection;
+    private boolean blocking;
+    private ArrayDeque<byte[]> queue = new ArrayDeque<byte[]>();
+    private int queuedBytes = 0;
+    private boolean draining = false;
+    private boolean closing = false;
+    private boolean closed = false;
+
+    /*
+     * blocking: out may block the writer, and is written by a writer task.
+     */
+    Outbox( OutputStream out, Closeable connection, boolean blocking ) {
+        this.out = blocking ? new BufferedOutputStream( out ) : out;
+        this.connection = connection;
+        this.blocking = blocking;
+    }
+
+    static byte[] encode( String line ) {
+        return (line + "\n").getBytes();
+    }
+
+    /*
+     * Queue the bytes for the client; they must not be modified afterwards, being shared with other outboxes.
+     */
+    synchronized void offer( byte[] bytes ) {
+        if( closing )
+            return;
+        nbMessages.incrementAndGet();
+        nbBytes.addAndGet( bytes.length );
+        if( !blocking ) {
+            try {
+                out.write( bytes );
+                out.flush();
+            } catch( IOException e ) {
+                closeConnection();
+            }
+            return;
+        }
+        if( queuedBytes + bytes.length > MAXQUEUED ) {
+            overflow();
+            return;
+        }
+        queue.add( bytes );
+        queuedBytes += bytes.length;
+        if( !draining ) {
+            draining = true;
+            writers.execute( new Runnable() {
+                public void run() {
+                    drain();
+                }
+            } );
+        }
+    }
+
+    synchronized int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /*
+     * Close the connection once the queued messages are written, or after CLOSEDELAY if the client does not read them.
+     */
+    synchronized void close() {
+        if( closing )
+            return;
+        closing = true;
+        if( !draining ) {
+            closeConnection();
+            return;
+        }
+        closer.schedule( new Runnable() {
+            public void run() {
+                synchronized( Outbox.this ) {
+                    closeConnection();
+                }
+            }
+        }, CLOSEDELAY, TimeUnit.MILLISECONDS );
+    }
+
+    private void overflow() {
+        if( !disconnectSlowClients ) {
+            nbDropped.incrementAndGet();
+            return;
+        }
+        nbDisconnected.incrementAndGet();
+        System.out.println( "Client does not read its messages, " + queuedBytes + " bytes waiting: disconnected" );
+        queue.clear();
+        queuedBytes = 0;
+        closing = true;
+        // Also wakes up the writer blocked on the socket
+        closeConnection();
+    }
+
+    private void drain() {
+        byte[] bytes;
+
+        try {
+            while( true ) {
+                synchronized( this ) {
+                    bytes = queue.poll();
+                    if( bytes != null )
+                        queuedBytes -= bytes.length;
+                }
+                if( bytes != null ) {
+                    out.write( bytes );
+                    continue;
+                }
+                out.flush();
+                synchronized( this ) {
+                    if( !queue.isEmpty() )
+                        continue;
+                    draining = false;
+                    if( closing )
+                        closeConnection();
+                    return;
+                }
+            }
+        } catch( IOException e ) {
+            synchronized( this ) {
+                queue.clear();
+                queuedBytes = 0;
+                draining = false;
+                closing = true;
+                closeConnection();
+            }
+        }
+    }
+
+    private void closeConnection() {
+        if( closed )
+            return;
+        closed = true;
+        try {
+            connection.close();
+        } catch( IOException e ) {
+            System.out.println( "problem while closing socket" );
+        }
+    }
+
+    static void printStats( PrintStream out ) {
+        out.println( "Messages: " + nbMessages.get() + " queued, " + nbBytes.get() + " bytes, " + nbDropped.get() + " dropped, " +
+                     nbDisconnected.get() + " slow clients disconnected (" + (disconnectSlowClients ? "disconnect" : "drop") +
+                     " beyond " + MAXQUEUED + " bytes)" );
+    }
+}
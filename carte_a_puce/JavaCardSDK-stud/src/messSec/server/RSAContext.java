@@ -0,0 +1,59 @@
+package server;
+
+import java.math.BigInteger;
+import java.security.*;
+import java.security.spec.*;
+import javax.crypto.Cipher;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/*
+ * RSA objects shared by all the logins of the server.
+ * The BouncyCastle provider is registered once, and each thread reuses its own KeyFactory and
+ * RSA_NOPAD Cipher, since neither is thread-safe: a login only initializes the cipher with the right key.
+ * Keys are built straight from the bytes of their modulus and exponent.
+ */
+class RSAContext {
+
+    final static Provider PROVIDER = new BouncyCastleProvider();
+    static {
+        Security.addProvider( PROVIDER );
+    }
+
+    private final static ThreadLocal<KeyFactory> keyFactory = new ThreadLocal<KeyFactory>() {
+        protected KeyFactory initialValue() {
+            try {
+                return KeyFactory.getInstance( "RSA" );
+            } catch( NoSuchAlgorithmException e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+    };
+
+    // Must use "Bouncy Castle" crypto provider, to apply RSA_NOPAD
+    private final static ThreadLocal<Cipher> cipher = new ThreadLocal<Cipher>() {
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance( "RSA/NONE/NoPadding", PROVIDER );
+            } catch( GeneralSecurityException e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+    };
+
+    static PublicKey publicKey( byte[] modulus, byte[] exponent ) throws InvalidKeySpecException {
+        return keyFactory.get().generatePublic( new RSAPublicKeySpec( new BigInteger( 1, modulus ), new BigInteger( 1, exponent ) ) );
+    }
+
+    static PrivateKey privateKey( byte[] modulus, byte[] exponent ) throws InvalidKeySpecException {
+        return keyFactory.get().generatePrivate( new RSAPrivateKeySpec( new BigInteger( 1, modulus ), new BigInteger( 1, exponent ) ) );
+    }
+
+    /*
+     * Cipher of the calling thread, initialized with the given key.
+     */
+    static Cipher cipher( int mode, Key key ) throws InvalidKeyException {
+        Cipher rsa = cipher.get();
+        rsa.init( mode, key );
+        return rsa;
+    }
+}
@@ -18,6 +18,10 @@ public class ServerChat extends Thread{
 		try {
             if(args.length > 0)
                 port = Integer.parseInt(args[0]);
+            if(args.length > 1)
+                setOverflowPolicy(args[1]);
+            if(args.length > 2)
+                ServiceChat.setMaxClients(Integer.parseInt(args[2]));
 			ServerChat server = new ServerChat();
 			receiver = new ServerSocket( port );
 			System.out.println( "Server uses port "+port );
@@ -32,7 +36,20 @@ public class ServerChat extends Thread{
         }
 	}
 	
+    /*
+     * What to do when a client does not read its messages: "drop" them, or "disconnect" the client.
+     */
+    static void setOverflowPolicy(String policy){
+        if(policy.equals("drop"))
+            Outbox.disconnectSlowClients = false;
+        else if(policy.equals("disconnect"))
+            Outbox.disconnectSlowClients = true;
+        else
+            System.out.println("Policy for slow clients should be drop or disconnect, clients are disconnected");
+    }
+
     public ServerChat() {
+        ChatMetrics.start();
         //Start listenConsole thread
 		initInputOutput();
         start();
@@ -70,6 +87,15 @@ public class ServerChat extends Thread{
 								ServiceChat.killUser(name);
 							}
 							break;
+						case "/stats":
+							ChatMetrics.print(outputConsole);
+							break;
+						case "/outbox":
+							ServiceChat.showOutboxes(outputConsole);
+							break;
+						case "/handshakes":
+							HandshakePool.printStats(outputConsole);
+							break;
 						case "/broadcast":
 							if(line.length() > 11)
 								ServiceChat.broadcastMessage("[SERVER]", line.substring(11,line.length()));
@@ -0,0 +1,272 @@
+package server;
+
+import java.net.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * Chat server serving all the clients from one selector thread, instead of one ServiceChat thread per client
+ * blocked on readLine(). The line protocol and the chat logic are the ones of ServerChat: each connection
+ * hands its lines over to a ServiceChat which is not started as a thread.
+ * Messages for a client are put in the write queue of its connection, so that a slow reader
+ * only delays its own messages, and never the broadcast to the others. Beyond MAXQUEUED bytes,
+ * its new messages are dropped, or it is disconnected, according to the policy of Outbox.
+ * The console commands of ServerChat (/list, /kill, /broadcast, /shutdown, /stats...) are available as well.
+ */
+public class ServerChatNIO {
+
+    final static int READSIZE = 8192;
+    // A client sending a longer line is disconnected: no line of the protocol comes near a frame
+    final static int MAXLINE = ServiceChat.MAXFRAME;
+    // Bytes waiting for a client not reading its messages, before the overflow policy applies
+    final static int MAXQUEUED = 4*1024*1024;
+
+    Selector selector;
+    Thread loopThread;
+    ByteBuffer readBuffer = ByteBuffer.allocateDirect( READSIZE );
+    // Connections with new messages to write, or to close
+    ConcurrentLinkedQueue<Connection> toWrite = new ConcurrentLinkedQueue<Connection>();
+    ServerChat console;
+
+	public static void main( String[] args ) {
+		int port = 2222;
+
+		try {
+            if(args.length > 0)
+                port = Integer.parseInt(args[0]);
+            if(args.length > 1)
+                ServerChat.setOverflowPolicy(args[1]);
+            if(args.length > 2)
+                ServiceChat.setMaxClients(Integer.parseInt(args[2]));
+			ServerChatNIO server = new ServerChatNIO();
+			server.console = new ServerChat();
+			System.out.println( "Server uses port "+port );
+			server.serve( port );
+		} catch( IOException e ) {
+			System.out.println( "connexion problem" );
+		} catch( IllegalArgumentException e) {
+			System.out.println( "Port should be an integer smaller than 65535" );
+        }
+	}
+
+    public void serve( int port ) throws IOException {
+        ServerSocketChannel receiver = ServerSocketChannel.open();
+        Iterator<SelectionKey> keys;
+        SelectionKey key;
+        Connection connection;
+
+        receiver.bind( new InetSocketAddress( port ) );
+        receiver.configureBlocking( false );
+        selector = Selector.open();
+        loopThread = Thread.currentThread();
+        receiver.register( selector, SelectionKey.OP_ACCEPT );
+
+        while( console.isAlive ) {
+            selector.select();
+            keys = selector.selectedKeys().iterator();
+            while( keys.hasNext() ) {
+                key = keys.next();
+                keys.remove();
+                if( key.isValid() && key.isAcceptable() )
+                    accept( receiver );
+                else {
+                    connection = (Connection)key.attachment();
+                    if( key.isValid() && key.isReadable() )
+                        read( connection );
+                    if( key.isValid() && key.isWritable() )
+                        write( connection );
+                }
+            }
+            // Write what has been queued while processing the lines, or by other threads.
+            while( (connection = toWrite.poll()) != null )
+                write( connection );
+        }
+    }
+
+    private void accept( ServerSocketChannel receiver ) throws IOException {
+        SocketChannel channel = receiver.accept();
+        Connection connection;
+
+        if( channel == null )
+            return;
+        channel.configureBlocking( false );
+        connection = new Connection( channel );
+        connection.key = channel.register( selector, SelectionKey.OP_READ, connection );
+        connection.service = new ServiceChat( (InetSocketAddress)channel.getRemoteAddress(), connection, connection );
+    }
+
+    /*
+     * Split the received bytes into lines, and give each complete line to the chat logic.
+     * When a line announces a binary frame, the frame is collected and given as a whole instead.
+     * A line longer than MAXLINE drops the client.
+     */
+    private void read( Connection connection ) {
+        byte b;
+        int length;
+
+        readBuffer.clear();
+        try {
+            if( connection.channel.read( readBuffer ) < 0 ) {
+                drop( connection );
+                return;
+            }
+        } catch( IOException e ) {
+            drop( connection );
+            return;
+        }
+        readBuffer.flip();
+        while( readBuffer.hasRemaining() && !connection.dropped ) {
+            if( connection.frame != null ) {
+                // Raw bytes of the binary frame announced by the last line
+                length = Math.min( readBuffer.remaining(), connection.frame.length - connection.frameFill );
+                readBuffer.get( connection.frame, connection.frameFill, length );
+                connection.frameFill += length;
+                if( connection.frameFill == connection.frame.length ) {
+                    byte[] frame = connection.frame;
+                    connection.frame = null;
+                    connection.service.receivedFrame( frame );
+                }
+                continue;
+            }
+            b = readBuffer.get();
+            if( b != '\n' ) {
+                if( connection.lineBuffer.size() >= MAXLINE ) {
+                    System.out.println( "Client on port " + connection.port() + " sends a line longer than " + MAXLINE + " bytes: disconnected" );
+                    drop( connection );
+                    return;
+                }
+                connection.lineBuffer.write( b );
+                continue;
+            }
+            String line = connection.lineBuffer.toString();
+            connection.lineBuffer.reset();
+            if( line.endsWith( "\r" ) )
+                line = line.substring( 0, line.length()-1 );
+            connection.service.received( line );
+            if( connection.service.frameLength > 0 ) {
+                connection.frame = new byte[connection.service.frameLength];
+                connection.frameFill = 0;
+            }
+        }
+    }
+
+    /*
+     * Write as much of the queue as the socket accepts, and only ask for OP_WRITE while something is left.
+     */
+    private void write( Connection connection ) {
+        ByteBuffer bytes;
+
+        if( connection.dropped )
+            return;
+        try {
+            while( (bytes = connection.writeQueue.peek()) != null ) {
+                connection.channel.write( bytes );
+                if( bytes.hasRemaining() )
+                    break;
+                connection.writeQueue.poll();
+                connection.queued.addAndGet( -bytes.capacity() );
+            }
+        } catch( IOException e ) {
+            drop( connection );
+            return;
+        }
+
+        if( connection.writeQueue.isEmpty() ) {
+            if( connection.closing )
+                drop( connection );
+            else
+                connection.key.interestOps( SelectionKey.OP_READ );
+        }
+        else if( connection.queued.get() > MAXQUEUED && Outbox.disconnectSlowClients ) {
+            Outbox.nbDisconnected.incrementAndGet();
+            System.out.println( "Client on port " + connection.port() + " does not read its messages" );
+            drop( connection );
+        }
+        else
+            connection.key.interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+    }
+
+    /*
+     * Close the channel, and disconnect the client from the chat if it has not left by itself.
+     */
+    private void drop( Connection connection ) {
+        if( connection.dropped )
+            return;
+        connection.dropped = true;
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch( IOException e ) {
+            System.out.println( "problem while closing socket" );
+        }
+        connection.service.closed();
+    }
+
+    /*
+     * Output of one client: bytes printed by ServiceChat are collected until the end of the line,
+     * then the line is queued and the event loop is told to write it.
+     */
+    class Connection extends OutputStream {
+        SocketChannel channel;
+        SelectionKey key;
+        ServiceChat service;
+        ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+        byte[] frame = null;
+        int frameFill;
+        ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+        // Bytes of the write queue: added to by the threads printing to the client, taken away by the event loop
+        final AtomicInteger queued = new AtomicInteger();
+        volatile boolean closing = false;
+        volatile boolean dropped = false;
+
+        Connection( SocketChannel channel ) {
+            this.channel = channel;
+        }
+
+        int port() {
+            return channel.socket().getPort();
+        }
+
+        public synchronized void write( int b ) {
+            pending.write( b );
+        }
+
+        public synchronized void write( byte b[], int off, int len ) {
+            pending.write( b, off, len );
+        }
+
+        public synchronized void flush() {
+            if( pending.size() == 0 || dropped )
+                return;
+            if( queued.get() > MAXQUEUED && !Outbox.disconnectSlowClients ) {
+                pending.reset();
+                Outbox.nbDropped.incrementAndGet();
+                return;
+            }
+            writeQueue.add( ByteBuffer.wrap( pending.toByteArray() ) );
+            queued.addAndGet( pending.size() );
+            pending.reset();
+            schedule();
+        }
+
+        /*
+         * Called by ServiceChat on disconnection: the channel is closed once the queued messages are written.
+         */
+        public void close() {
+            flush();
+            closing = true;
+            schedule();
+        }
+
+        private void schedule() {
+            toWrite.add( this );
+            if( Thread.currentThread() != loopThread )
+                selector.wakeup();
+        }
+    }
+}
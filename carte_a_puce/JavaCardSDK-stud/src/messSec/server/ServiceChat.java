@@ -4,37 +4,50 @@ import java.net.*;
 import java.io.*;
 import java.util.*;
 import java.util.Base64;
-import java.util.Date;
-import java.util.Random;
-import java.math.BigInteger;
-import java.security.KeyFactory;
-import java.security.PublicKey;
+import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
-import java.security.Security;
-import java.security.spec.RSAPublicKeySpec;
-import java.security.spec.RSAPrivateKeySpec;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPublicKey;
 import javax.crypto.Cipher;
-import opencard.core.util.HexString;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 class ServiceChat extends Thread {
 
-    final static int NBCLIENTSMAX = 3;
+    // Clients served at once, which the servers may change before accepting any
+    static int nbClientsMax = 3;
 	final static int DATASIZE = 128;				//128 to use with RSA1024_NO_PAD
+	// Largest binary frame relayed for /stream, the client sending much smaller ones
+	final static int MAXFRAME = 64*1024;
     
 	Socket socket;
-	BufferedReader input;
-	static PrintStream[] outputs = new PrintStream[NBCLIENTSMAX];
+	// Read as bytes, since binary frames follow some lines
+	DataInputStream input;
+	// Messages waiting for each client, written by writer tasks
+	static Outbox[] outboxes = new Outbox[nbClientsMax];
     static int nbClients = 0;
-    static String clientID[] = new String[NBCLIENTSMAX];
+    static String clientID[] = new String[nbClientsMax];
     String clientName;
     static HashMap<String, String> credentialsMap = new HashMap<String, String>();
     boolean isAuthenticated;
     boolean nameProvided;
     boolean pendingTransfer = false;
-	static Socket socketTab[] = new Socket[NBCLIENTSMAX];
+    // An RSA step of the authentication is queued or running on a handshake worker
+    boolean handshakePending = false;
+	// What to close on disconnection: the socket in thread mode, or the connection of ServerChatNIO
+	Closeable connection;
+	// Port naming the client until it provides a name
+	int port;
+	// Address of the client, which its handshakes are limited by
+	String address;
+	// Length of the binary frame following the last line, to be read and given to receivedFrame()
+	int frameLength = 0;
+	String frameHeader, frameDest;
 	
 	byte[] challengeBytes = new byte[DATASIZE];
+	// Sent to every authenticated client: their cards derive the key of the session cipher from it
+	static byte[] sessionNonce = new byte[16];
+	static {
+		new SecureRandom().nextBytes(sessionNonce);
+	}
 	
 	static private byte[] modulus_b = new byte[] {
 			(byte)0x90,(byte)0x08,(byte)0x15,(byte)0x32,(byte)0xb3,(byte)0x6a,(byte)0x20,(byte)0x2f,
@@ -73,11 +86,71 @@ class ServiceChat extends Thread {
 			(byte)0x2d,(byte)0x74,(byte)0x59,(byte)0x1c,(byte)0xdb,(byte)0x18,(byte)0xb3,(byte)0x41
 		};
 	static private byte[] public_exponent_b = new byte[] { (byte)0x01,(byte)0x00,(byte)0x01 };
+	static private PrivateKey serverPrivateKey;
+	static {
+		try {
+			serverPrivateKey = RSAContext.privateKey(modulus_b, private_exponent_b);
+		} catch( GeneralSecurityException e ) {
+			System.out.println( "Server private key: " + e );
+		}
+	}
+	// Challenges must not be predictable, nor the same for the logins of the same millisecond
+	static private SecureRandom random = new SecureRandom();
 
 	public ServiceChat( Socket socket ) {
 		this.socket = socket;
+		this.connection = socket;
+		this.port = socket.getPort();
+		this.address = socket.getInetAddress().getHostAddress();
 		this.start();
 	}
+
+	// Constructor for ServerChatNIO: no thread is started, lines are given by the event loop with received()
+	public ServiceChat( InetSocketAddress remote, OutputStream output, Closeable connection ) {
+		this.connection = connection;
+		this.port = remote.getPort();
+		this.address = remote.getAddress().getHostAddress();
+		connexion( output );
+	}
+
+	void received(String texte){
+		processMessage(texte);
+	}
+
+	void closed(){
+		deconnexion();
+	}
+
+	/*
+	 * Relay the frame announced by /chunk or /endchunk to its recipient,
+	 * as a "CHUNK <sender> <length>" or "ENDCHUNK <sender> <length>" line followed by the raw bytes.
+	 */
+	synchronized void receivedFrame(byte[] frame){
+		int destIndex = findMatchingName(frameDest);
+		frameLength = 0;
+		ChatMetrics.nbFileBytes.addAndGet(frame.length);
+		if(destIndex < getNbClients())
+			sendFrame(destIndex, frameHeader + " " + clientName + " " + frame.length, frame);
+		else
+			sendMessage(getClientID(), "ABORT " + frameDest);
+	}
+
+	/*
+	 * Read a line of the client, decoded as InputStreamReader does: null at the end of the stream.
+	 */
+	static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+
+		while((b = in.read()) != '\n')
+		{
+			if(b < 0)
+				return line.size() > 0 ? line.toString() : null;
+			line.write(b);
+		}
+		String texte = line.toString();
+		return texte.endsWith("\r") ? texte.substring(0, texte.length()-1) : texte;
+	}
 	
 	static protected synchronized void showClientsList(){
 		System.out.println("List of Users :");
@@ -89,41 +162,59 @@ class ServiceChat extends Thread {
 	
 	static protected synchronized void killUser(String userName){
 		int i;
+		int currentClientIndex;
 
-        try{
-			int currentClientIndex;
-			for(i = 0; i < getNbClients(); i++)
+		for(i = 0; i < getNbClients(); i++)
+		{
+			if(clientID[i].equals(userName))
 			{
-				if(clientID[i].equals(userName))
-				{
-					sendMessage(i, "[SERVER] Bye "+userName+"!");
-					socketTab[i].close();
-					break;
-				}
+				sendMessage(i, "[SERVER] Bye "+userName+"!");
+				outboxes[i].close();
+				break;
 			}
-			if(i < getNbClients())
+		}
+		if(i < getNbClients())
+		{
+			currentClientIndex = i;
+
+			for(i = currentClientIndex; i < getNbClients()-1; i++)
 			{
-				currentClientIndex = i;
+				outboxes[i] = outboxes[i+1];
+				clientID[i] = clientID[i+1];
+			}
 
-				for(i = currentClientIndex; i < getNbClients()-1; i++)
-				{
-					outputs[i] = outputs[i+1];
-					clientID[i] = clientID[i+1];
-					socketTab[i] = socketTab[i+1];
-				}
+			nbClients--;
 
-				nbClients--;
+			broadcastMessage("[SERVER]", userName + " has left the chat / "+getNbClients()+" users connected.");
+			System.out.println(userName + " disconnected");
+		}
+		else
+		{
+			System.out.println("No user "+userName+ " connected");
+		}
+	}
 
-				broadcastMessage("[SERVER]", userName + " has left the chat / "+getNbClients()+" users connected.");
-				System.out.println(userName + " disconnected");
-			}
-			else
-			{
-				System.out.println("No user "+userName+ " connected");
-			}
-        } catch( IOException e ) {
-			System.out.println( "problem during disconnection" );
+	static protected synchronized void showOutboxes(PrintStream out){
+		for(String depth : queueDepths())
+		{
+			out.println(depth);
+		}
+		Outbox.printStats(out);
+	}
+
+	static synchronized void setMaxClients(int max){
+		nbClientsMax = max;
+		outboxes = new Outbox[max];
+		clientID = new String[max];
+	}
+
+	static synchronized String[] queueDepths(){
+		String[] depths = new String[getNbClients()];
+		for(int i = 0; i < getNbClients(); i++)
+		{
+			depths[i] = clientID[i] + ": " + outboxes[i].getQueuedBytes() + " bytes waiting";
 		}
+		return depths;
 	}
 	
 	static protected synchronized void shutdownServer(){
@@ -134,7 +225,7 @@ class ServiceChat extends Thread {
 		}
 	}
 
-    static private synchronized int getNbClients(){
+    static synchronized int getNbClients(){
         return nbClients;
     }
 
@@ -152,15 +243,23 @@ class ServiceChat extends Thread {
         return findMatchingName(clientName);
     }
 
+    // Only queue the messages: the class lock is never held while writing to a socket
     static private synchronized void sendMessage(int id, String texte){
-        outputs[id].println(texte);
+        outboxes[id].offer(Outbox.encode(texte));
     }
 
-    static protected void broadcastMessage(String name, String texte){
-        int i;
-        for(i = 0; i < getNbClients(); i++)
+    static private synchronized void sendFrame(int id, String header, byte[] frame){
+        byte[] line = Outbox.encode(header);
+        byte[] bytes = Arrays.copyOf(line, line.length + frame.length);
+        System.arraycopy(frame, 0, bytes, line.length, frame.length);
+        outboxes[id].offer(bytes);
+    }
+
+    static protected synchronized void broadcastMessage(String name, String texte){
+        byte[] bytes = Outbox.encode(name + " " + texte);
+        for(int i = 0; i < getNbClients(); i++)
         {
-            sendMessage(i, name + " " + texte);
+            outboxes[i].offer(bytes);
         }
     }
     
@@ -180,9 +279,13 @@ class ServiceChat extends Thread {
         if(destIndex < getNbClients())
         {
             if(!pendingTransfer)
+            {
+                ChatMetrics.nbFileTransfers.incrementAndGet();
                 sendMessage(destIndex, "FILE " + clientName + " " + texte );
+            }
             else
                 sendMessage(destIndex, "BUFFER " + clientName + " " + texte );
+            ChatMetrics.nbFileBytes.addAndGet(texte.length());
             pendingTransfer = true;
         }   
         else
@@ -202,9 +305,11 @@ class ServiceChat extends Thread {
         }
         else
         {
+            long start = System.nanoTime();
+            ChatMetrics.nbMessages.incrementAndGet();
             try
             {
-                if(texte.length() > 6 && !texte.substring(0,7).equals("/buffer"))
+                if(!texte.startsWith("/buffer") && !texte.startsWith("/chunk") && !texte.startsWith("/endchunk") && !texte.startsWith("/ack"))
                     System.out.println(clientName + ": " + texte);
                 if(texte.length() > 0 && texte.substring(0,1).equals("/"))
                     processCommand(texte.substring(1,texte.length()));
@@ -215,75 +320,89 @@ class ServiceChat extends Thread {
             {
                 broadcastMessage("[MSG] "+clientName, "> " + texte);
             }
+            ChatMetrics.routing.recordSince(start);
         }
     }
     
-    private synchronized void generateAndSendChallenge(String clientPubKey){
+    /*
+     * Cipher a new random challenge with the public key of the client on a handshake worker,
+     * then keep it and send it. The user is asked to retry when too many handshakes are going on.
+     */
+    private void generateAndSendChallenge(String user, final String clientPubKey){
+        if(!HandshakePool.allow(user, address))
+        {
+            restartAuthentication("[SERVER] Too many attempts for " + user + ", please wait");
+            return;
+        }
+        handshakePending = true;
+        if(!HandshakePool.submit(new Runnable() {
+            public void run() {
+                byte[] challenge = new byte[DATASIZE];
+                byte[] ciphered = cipherChallenge(clientPubKey, challenge);
+                synchronized(ServiceChat.this) {
+                    handshakePending = false;
+                    challengeBytes = challenge;
+                    if(ciphered == null)
+                    {
+                        ChatMetrics.nbAuthFailures.incrementAndGet();
+                        restartAuthentication("[SERVER] Authentication failure");
+                    }
+                    else if(getClientID() < getNbClients())
+                        sendMessage(getClientID(), "[SERVER] AUTH_CHALL "+ Base64.getEncoder().withoutPadding().encodeToString(ciphered));
+                }
+            }
+        }))
+        {
+            handshakePending = false;
+            restartAuthentication("[SERVER] Server busy, please retry");
+        }
+    }
+
+    /*
+     * Fill challenge with random bytes, and return them ciphered with the public key: null if the key is wrong.
+     */
+    private static byte[] cipherChallenge(String clientPubKey, byte[] challenge){
 	
 		try{
 			String[] textParts = clientPubKey.split(" ");
 			byte[] modClient = Base64.getDecoder().decode(textParts[0]);
 			byte[] expClient = Base64.getDecoder().decode(textParts[1]);
     	
-			String mod_s =  HexString.hexify( modClient );
-			mod_s = mod_s.replaceAll( " ", "" );
-			mod_s = mod_s.replaceAll( "\n", "" );
-			
-			System.out.println("Modulus "+mod_s);
-
-			String pub_s =  HexString.hexify( expClient );
-			pub_s = pub_s.replaceAll( " ", "" );
-			pub_s = pub_s.replaceAll( "\n", "" );
-			
-			System.out.println("Exponent "+pub_s);
-
-			// Load the keys from String into BigIntegers
-			BigInteger modulus = new BigInteger(mod_s, 16);
-			BigInteger pubExponent = new BigInteger(pub_s, 16);
-
-			// Create private and public key specs from BinIntegers
-			RSAPublicKeySpec publicSpec = new RSAPublicKeySpec(modulus, pubExponent);
-
-			// Create the RSA private and public keys
-			KeyFactory factory = KeyFactory.getInstance( "RSA" );
-			PublicKey pubClient = factory.generatePublic(publicSpec);
-			// Get Cipher able to apply RSA_NOPAD
-			// (must use "Bouncy Castle" crypto provider)
-			Security.addProvider(new BouncyCastleProvider());
-			Cipher cRSA_NO_PAD = Cipher.getInstance( "RSA/NONE/NoPadding", "BC" );
+			// Load the key straight from its bytes
+			RSAPublicKey pubClient = (RSAPublicKey)RSAContext.publicKey(modClient, expClient);
+			System.out.println("Modulus "+pubClient.getModulus().toString(16));
+			System.out.println("Exponent "+pubClient.getPublicExponent().toString(16));
+			Cipher cRSA_NO_PAD = RSAContext.cipher( Cipher.ENCRYPT_MODE, pubClient );
 
 			// Get challenge data
-			Random r = new Random( (new Date()).getTime() );
-			r.nextBytes( challengeBytes );
+			random.nextBytes( challenge );
 		
 			// Crypt with public key
-			cRSA_NO_PAD.init( Cipher.ENCRYPT_MODE, pubClient );
 			byte[] ciphered = new byte[DATASIZE];
 			System.out.println( "*" );
 			while(true)
 			{
 				try{
-					cRSA_NO_PAD.doFinal(challengeBytes, 0, DATASIZE, ciphered, 0);
+					cRSA_NO_PAD.doFinal(challenge, 0, DATASIZE, ciphered, 0);
 					break;
 				}
 				catch(org.bouncycastle.crypto.DataLengthException e)
 				{
 					// random bytes led to bad input for RSA, trying new.
-					r.nextBytes( challengeBytes );
+					random.nextBytes( challenge );
 					System.out.println("org.bouncycastle.crypto.DataLengthException : trying new random bytes");
 					continue;
 				}
 			}
-			//ciphered = cRSA_NO_PAD.doFinal( challengeBytes );
 			System.out.println( "*" );
-			System.out.println("[SERVER] AUTH_CHALL Clear " + Base64.getEncoder().withoutPadding().encodeToString(challengeBytes));
+			System.out.println("[SERVER] AUTH_CHALL Clear " + Base64.getEncoder().withoutPadding().encodeToString(challenge));
 			System.out.println("[SERVER] AUTH_CHALL " + Base64.getEncoder().withoutPadding().encodeToString(ciphered));
-    	
-			sendMessage(getClientID(), "[SERVER] AUTH_CHALL "+ Base64.getEncoder().withoutPadding().encodeToString(ciphered));
+			return ciphered;
 		
 		} catch( Exception e ) {
 			System.out.println( "generateAndSendChallenge: " + e );
 		}
+		return null;
     }
 
 	private synchronized void initiatePublicKeyExchange() {
@@ -293,37 +412,16 @@ class ServiceChat extends Thread {
 			" "+Base64.getEncoder().withoutPadding().encodeToString(public_exponent_b));
 	}
 	
-	private boolean compareResponseToSentChallenge(String response) {
-		byte[] decodedBytes = Base64.getDecoder().decode(response);
-		
+	private static boolean compareResponseToSentChallenge(String response, byte[] challengeBytes) {
 		try{
-		
-			String mod_s =  HexString.hexify( modulus_b );
-			mod_s = mod_s.replaceAll( " ", "" );
-			mod_s = mod_s.replaceAll( "\n", "" );
-
-			String priv_s =  HexString.hexify( private_exponent_b );
-			priv_s = priv_s.replaceAll( " ", "" );
-			priv_s = priv_s.replaceAll( "\n", "" );
-
-			// Load the keys from String into BigIntegers (step 3)
-			BigInteger modulus = new BigInteger(mod_s, 16);
-			BigInteger privExponent = new BigInteger(priv_s, 16);
-
-			// Create private and public key specs from BinIntegers
-			RSAPrivateKeySpec privateSpec = new RSAPrivateKeySpec(modulus, privExponent);
-
-			// Create the RSA private and public keys
-			KeyFactory factory = KeyFactory.getInstance( "RSA" );
-			PrivateKey priv = factory.generatePrivate(privateSpec);
-		
-			Security.addProvider(new BouncyCastleProvider());
-			Cipher cRSA_NO_PAD = Cipher.getInstance( "RSA/NONE/NoPadding", "BC" );
+			byte[] decodedBytes = Base64.getDecoder().decode(response);
 		
 			// Decrypt with private key
-			cRSA_NO_PAD.init( Cipher.DECRYPT_MODE, priv );
+			Cipher cRSA_NO_PAD = RSAContext.cipher( Cipher.DECRYPT_MODE, serverPrivateKey );
+			// Leading zero bytes are not output: the result is aligned on the right
+			byte[] result = cRSA_NO_PAD.doFinal( decodedBytes, 0, DATASIZE );
 			byte[] unciphered = new byte[DATASIZE];
-			cRSA_NO_PAD.doFinal( decodedBytes, 0, DATASIZE, unciphered, 0);
+			System.arraycopy( result, 0, unciphered, DATASIZE - result.length, result.length );
 			System.out.println("[SERVER] AUTH_CHALL Clear " + Base64.getEncoder().withoutPadding().encodeToString(challengeBytes));
 			System.out.println("[SERVER] AUTH_CHALL Unciphered " + Base64.getEncoder().withoutPadding().encodeToString(unciphered));
 			return Arrays.equals(challengeBytes, unciphered);
@@ -338,7 +436,11 @@ class ServiceChat extends Thread {
 
         int currentClientIndex = getClientID();
        
-        if(!nameProvided)
+        if(handshakePending)
+        {
+            sendMessage(currentClientIndex, "[SERVER] Authentication in progress" );
+        }
+        else if(!nameProvided)
         {
             if(findMatchingName(texte) < getNbClients())
             {
@@ -346,19 +448,19 @@ class ServiceChat extends Thread {
             }
             else
             {
+                nameProvided = true;
+                clientName = ""+ texte;
+                clientID[currentClientIndex] = clientName;
                 if(credentialsMap.get(texte) != null)
                 {
                     sendMessage(currentClientIndex, "[SERVER] Please authenticate" );
-                    generateAndSendChallenge(credentialsMap.get(texte));
+                    generateAndSendChallenge(clientName, credentialsMap.get(texte));
                 }
                 else
                 {
                     sendMessage(currentClientIndex, "[SERVER] has sent public key" );
                     initiatePublicKeyExchange();
                 }
-                nameProvided = true;
-                clientName = ""+ texte;
-                clientID[currentClientIndex] = clientName;
             }
         }
         else if(credentialsMap.get(clientName) == null)
@@ -367,28 +469,60 @@ class ServiceChat extends Thread {
             credentialsMap.put(clientName, texte); 
             //Send challenge for authentication
             sendMessage(currentClientIndex, "[SERVER] Thanks for public key, please authenticate" );
-            generateAndSendChallenge(texte);
+            generateAndSendChallenge(clientName, texte);
         }
         else
         {
-        	//Received String for user with an entry in DB : expecting answer to challenge
-            if(compareResponseToSentChallenge(texte))
-                isAuthenticated = true;
-            else
+        	//Received String for user with an entry in DB : expecting answer to challenge, checked on a handshake worker
+            final String response = texte;
+            final byte[] challenge = challengeBytes;
+            handshakePending = true;
+            if(!HandshakePool.submit(new Runnable() {
+                public void run() {
+                    boolean valid = compareResponseToSentChallenge(response, challenge);
+                    synchronized(ServiceChat.this) {
+                        handshakePending = false;
+                        if(valid)
+                            welcome();
+                        else
+                        {
+                            ChatMetrics.nbAuthFailures.incrementAndGet();
+                            restartAuthentication("[SERVER] Authentication failure");
+                        }
+                    }
+                }
+            }))
             {
-                sendMessage(currentClientIndex, "[SERVER] Authentication failure\nPlease enter your name" );
-                isAuthenticated = false;
-                nameProvided = false;
-                clientName = "";
-                clientID[currentClientIndex] = clientName;
+                handshakePending = false;
+                restartAuthentication("[SERVER] Server busy, please retry");
             }
         }
-        if(isAuthenticated)
-        {
-            System.out.println(clientName + " connected");
-            sendMessage(getClientID(), "[SERVER] Hello "+clientName+"!");
-            broadcastMessage("[SERVER]", clientName+" has joined the chat / "+nbClients+" users connected.");
-        }
+    }
+
+    private synchronized void welcome(){
+        if(getClientID() >= getNbClients())
+            return;
+        isAuthenticated = true;
+        ChatMetrics.nbAuthSuccesses.incrementAndGet();
+        System.out.println(clientName + " connected");
+        sendMessage(getClientID(), "[SERVER] SESSION "+Base64.getEncoder().withoutPadding().encodeToString(sessionNonce));
+        sendMessage(getClientID(), "[SERVER] Hello "+clientName+"!");
+        broadcastMessage("[SERVER]", clientName+" has joined the chat / "+nbClients+" users connected.");
+    }
+
+    /*
+     * Back to the start of the authentication, the client being named by its port again.
+     */
+    private synchronized void restartAuthentication(String reason){
+        int currentClientIndex = getClientID();
+
+        if(currentClientIndex >= getNbClients())
+            return;
+        sendMessage(currentClientIndex, reason + "\nPlease enter your name" );
+        isAuthenticated = false;
+        nameProvided = false;
+        clientName = ""+ port;
+        clientID[currentClientIndex] = clientName;
     }
 
     private synchronized void processCommand(String line){
@@ -454,6 +588,7 @@ class ServiceChat extends Thread {
 						sendMessage(getClientID(), "[SERVER] /list                   : get list of connected users");
 						sendMessage(getClientID(), "[SERVER] /nickname <name>        : change nickname");
 						sendMessage(getClientID(), "[SERVER] /file <name> <file>     : transmit file");
+						sendMessage(getClientID(), "[SERVER] /stream <name> <file>   : transmit file in binary frames");
 						sendMessage(getClientID(), "[SERVER] /msg <username> <text>  : send private message to given user");
 					}
 				
@@ -480,6 +615,52 @@ class ServiceChat extends Thread {
 						sendMessage(getClientID(), "[SERVER] Buffer end of file issue");
 					}
 					break;
+				case "stream":
+					try{
+						String dest = st.nextToken();
+						String file = st.nextToken();
+						// Cipher of the frames, when not the card one
+						String mode = st.hasMoreTokens() ? " " + st.nextToken() : "";
+						int ID = findMatchingName(dest);
+						if(ID < getNbClients())
+						{
+							ChatMetrics.nbFileTransfers.incrementAndGet();
+							sendMessage(ID, "STREAM " + clientName + " " + file + mode);
+						}
+						else
+						{
+							sendMessage(getClientID(), "Sorry, " + dest + " is not connected to the chat");
+							sendMessage(getClientID(), "ABORT " + dest);
+						}
+					} catch(NoSuchElementException e ) {
+						sendMessage(getClientID(), "[SERVER] /stream <name> <file>   : transmit file in binary frames");
+					}
+					break;
+				case "chunk":
+				case "endchunk":
+					// The frame itself is read by the connection, then given to receivedFrame()
+					try{
+						frameDest = st.nextToken();
+						frameLength = Integer.parseInt(st.nextToken());
+						frameHeader = text.toUpperCase();
+						if(frameLength <= 0 || frameLength > MAXFRAME)
+							throw new NumberFormatException();
+					} catch(NoSuchElementException | NumberFormatException e ) {
+						// The bytes following cannot be told apart from lines anymore
+						frameLength = 0;
+						sendMessage(getClientID(), "[SERVER] Frame header issue");
+						deconnexion();
+					}
+					break;
+				case "ack":
+				case "abort":
+					if(st.hasMoreTokens())
+					{
+						int ID = findMatchingName(st.nextToken());
+						if(ID < getNbClients())
+							sendMessage(ID, text.toUpperCase() + " " + clientName);
+					}
+					break;
 				
 				case "msg":
 					try{
@@ -501,6 +682,7 @@ class ServiceChat extends Thread {
 					sendMessage(getClientID(), "[SERVER] /list                   : get list of connected users");
 					sendMessage(getClientID(), "[SERVER] /nickname <name>        : change nickname");
 					sendMessage(getClientID(), "[SERVER] /file <name> <file>     : transmit file");
+					sendMessage(getClientID(), "[SERVER] /stream <name> <file>   : transmit file in binary frames");
 					sendMessage(getClientID(), "[SERVER] /msg <username> <text>  : send private message to given user");
 					break;
 			}
@@ -511,19 +693,24 @@ class ServiceChat extends Thread {
         killUser(clientName);
     }
 
-    private synchronized void connexion(){
+    private synchronized void connexion( OutputStream out ){
         try{
             isAuthenticated = false;
             nameProvided = false;
-            outputs[nbClients] = new PrintStream( socket.getOutputStream() );
-            sendMessage(nbClients, "[SERVER] Please enter your name");
-            clientName = ""+ socket.getPort();
-            clientID[nbClients] = clientName;
-			socketTab[nbClients] = socket;
-            nbClients++;
-		} catch( IOException | ArrayIndexOutOfBoundsException e ) {
+            clientName = ""+ port;
+            // The tables of the clients are walked by the broadcasts under the class lock
+            synchronized(ServiceChat.class)
+            {
+                // Only the sockets of the thread mode may block
+                outboxes[nbClients] = new Outbox( out, connection, socket != null );
+                sendMessage(nbClients, "[SERVER] Please enter your name");
+                clientID[nbClients] = clientName;
+                nbClients++;
+            }
+            ChatMetrics.nbConnections.incrementAndGet();
+		} catch( ArrayIndexOutOfBoundsException e ) {
 			try {
-				socket.close();
+				connection.close();
 			} catch( IOException e2 ) {
 				System.out.println( "problem while closing socket" );
 			}
@@ -532,8 +719,8 @@ class ServiceChat extends Thread {
 
 	public void run() {
 		try {
-			input = new BufferedReader( new InputStreamReader( socket.getInputStream() ) );
-            connexion();
+			input = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+            connexion( socket.getOutputStream() );
 		} catch( IOException e ) {
 			try {
 				socket.close();
@@ -547,8 +734,14 @@ class ServiceChat extends Thread {
 		try {
 			while(true)
             {
-                texte = input.readLine();
+                texte = readLine(input);
                 processMessage(texte);
+                if(frameLength > 0)
+                {
+                    byte[] frame = new byte[frameLength];
+                    input.readFully(frame);
+                    receivedFrame(frame);
+                }
             }
 		} catch( IOException e ) {
 			System.out.println( "problem during run" );
@@ -9,6 +9,11 @@ import javacard.framework.*;
 public class TheApplet extends Applet {
 
 
+    static final byte COMMITFILE                = (byte)0x19;
+    static final byte DELETEFILE                = (byte)0x18;
+    static final byte LISTFILES                 = (byte)0x17;
+    static final byte OPENFILE                  = (byte)0x16;
+    static final byte CREATEFILE                = (byte)0x15;
     static final byte UPDATECARDKEY             = (byte)0x14;
     static final byte UNCIPHERFILEBYCARD            = (byte)0x13;
     static final byte CIPHERFILEBYCARD          = (byte)0x12;
@@ -39,12 +44,27 @@ public class TheApplet extends Applet {
     static byte[] NAME              = new byte[NAMESIZE];
     final static short NVRSIZE      = (short)0x1000;
     static byte[] NVR               = new byte[NVRSIZE];
+    /*
+     * Directory of the files stored in NVR: for each entry, the length of the name (0 when the entry is free)
+     * followed by the name, then the offset, the size and the committed length of the file
+     */
+    final static byte MAXFILES      = (byte)8;
+    final static short MAXNAMESIZE  = (short)0x10;
+    final static short ENTRYSIZE    = (short)(MAXNAMESIZE + 1);
+    static byte[] DIRNAMES          = new byte[(short)(MAXFILES * ENTRYSIZE)];
+    static short[] DIROFFSETS       = new short[MAXFILES];
+    static short[] DIRSIZES         = new short[MAXFILES];
+    static short[] DIRWRITTEN       = new short[MAXFILES];
+    // Data written to a file, kept in RAM until it is written to NVR in one go
+    final static short STAGESIZE    = (short)0x0200;
+    byte[] stage;
+    // Also in RAM: the file opened by CREATEFILE or OPENFILE plus 1 (0 when none), and the bytes staged for it
+    short[] session;
+    final static byte OPENED        = (byte)0;
+    final static byte STAGED        = (byte)1;
     OwnerPIN writePIN;
     OwnerPIN readPIN;
     boolean security;
-    static short nvr_offset;
-    static short nb_apdu;
-    short apdu_size;
 
     protected TheApplet() {
         this.register();
@@ -58,6 +78,8 @@ public class TheApplet extends Applet {
         readPIN = new OwnerPIN((byte)3,(byte)8);                // 3 tries 8=Max Size
         readPIN.update(pincode,(short)0,(byte)4);               // from pincode, offset 0, length 4
         security = false;
+        stage = JCSystem.makeTransientByteArray(STAGESIZE, JCSystem.CLEAR_ON_DESELECT);
+        session = JCSystem.makeTransientShortArray((short)2, JCSystem.CLEAR_ON_DESELECT);
     }
 
 
@@ -85,6 +107,11 @@ public class TheApplet extends Applet {
         byte[] buffer = apdu.getBuffer();
 
         switch( buffer[1] )     {
+            case COMMITFILE: commitFile( apdu ); break;
+            case DELETEFILE: deleteFile( apdu ); break;
+            case LISTFILES: listFiles( apdu ); break;
+            case OPENFILE: openFile( apdu ); break;
+            case CREATEFILE: createFile( apdu ); break;
             case UPDATECARDKEY: updateCardKey( apdu ); break;
             case UNCIPHERFILEBYCARD: uncipherFileByCard( apdu ); break;
             case CIPHERFILEBYCARD: cipherFileByCard( apdu ); break;
@@ -119,56 +146,296 @@ public class TheApplet extends Applet {
     }
 
 
-    void readFileFromCard( APDU apdu ) {
-        byte[] buffer = apdu.getBuffer();
-        if (security && (! readPIN.isValidated()) )
-            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
-        else
+    /*
+     * Entry of the file named by the length and name at offset in buffer, -1 if there is none.
+     */
+    short findFile( byte[] buffer, short offset ) {
+        byte length = buffer[offset];
+        for(short i = 0; i < MAXFILES; i++)
+        {
+            short entry = (short)(i * ENTRYSIZE);
+            if(length != 0 && DIRNAMES[entry] == length &&
+               Util.arrayCompare(buffer, (short)(offset + 1), DIRNAMES, (short)(entry + 1), length) == 0)
+                return i;
+        }
+        return -1;
+    }
+
+
+    boolean isFree( short file ) {
+        return DIRNAMES[(short)(file * ENTRYSIZE)] == 0;
+    }
+
+
+    /*
+     * First place of NVR where size bytes overlap no file but the ignored one, -1 if there is none.
+     * The places tried are the start of NVR and the end of each file.
+     */
+    short allocate( short size, short ignored ) {
+        for(short i = -1; i < MAXFILES; i++)
         {
-            if(buffer[2] == 0x01)
+            if(i >= 0 && (isFree(i) || i == ignored))
+                continue;
+            short start = i < 0 ? 0 : (short)(DIROFFSETS[i] + DIRSIZES[i]);
+            if(size > (short)(NVRSIZE - start))
+                continue;
+            boolean fits = true;
+            for(short j = 0; j < MAXFILES && fits; j++)
             {
-                /*header*/
-                Util.arrayCopy(NVR, (short)0, buffer, (short)0, (short)(NVR[0] + 2));
-                apdu.setOutgoingAndSend( (short)0, (short)(NVR[0] + 2));
-                nvr_offset = (short)(NVR[0] + 3);
-                nb_apdu = 0;
+                if(!isFree(j) && j != ignored && DIROFFSETS[j] < (short)(start + size) && start < (short)(DIROFFSETS[j] + DIRSIZES[j]))
+                    fits = false;
             }
-            else
+            if(fits)
+                return start;
+        }
+        return -1;
+    }
+
+
+    /*
+     * Largest run of NVR free of files, from the places allocate tries: the most a new file may take.
+     */
+    short largestFree() {
+        short largest = 0;
+        short entry = 0;
+        while(entry < MAXFILES && !isFree(entry))
+            entry++;
+        // no entry left in the directory
+        if(entry == MAXFILES)
+            return 0;
+        for(short i = -1; i < MAXFILES; i++)
+        {
+            if(i >= 0 && isFree(i))
+                continue;
+            short start = i < 0 ? 0 : (short)(DIROFFSETS[i] + DIRSIZES[i]);
+            short end = NVRSIZE;
+            for(short j = 0; j < MAXFILES && start < end; j++)
             {
-                apdu_size = (short)MAXSIZEAPDU;
-                /*buffers*/
-                if((short)(nb_apdu) == NVR[(short)(NVR[0] + 1)])
-                {
-                    apdu_size = (short)(NVR[(short)(NVR[0] + 2)]);
-                }
-                Util.arrayCopy(NVR, (short)nvr_offset, buffer, (short)0, apdu_size);
-                apdu.setOutgoingAndSend( (short)0, apdu_size);
-                nvr_offset += (short)MAXSIZEAPDU;
-                nb_apdu += (short)1;
+                if(isFree(j) || DIRSIZES[j] == 0)
+                    continue;
+                if(DIROFFSETS[j] <= start && start < (short)(DIROFFSETS[j] + DIRSIZES[j]))
+                    end = start;
+                else if(DIROFFSETS[j] > start && DIROFFSETS[j] < end)
+                    end = DIROFFSETS[j];
             }
+            if((short)(end - start) > largest)
+                largest = (short)(end - start);
         }
+        return largest;
     }
 
 
-    void writeFileToCard( APDU apdu ) {
+    short openedFile() {
+        return (short)(session[OPENED] - 1);
+    }
+
+
+    /*
+     * Open a file, the data staged for the previous one being written first.
+     */
+    void open( short file ) {
+        flush();
+        session[OPENED] = (short)(file + 1);
+    }
+
+
+    /*
+     * Write the staged data after the committed part of the opened file, then commit it.
+     * The data goes where no committed byte is, so it is copied without the cost of the transaction
+     * buffer: a tear only loses it, the file keeping its previous committed length.
+     * The new length is a single field, written atomically.
+     */
+    void flush() {
+        short file = openedFile();
+        if(file < 0 || session[STAGED] == 0)
+            return;
+        Util.arrayCopyNonAtomic(stage, (short)0, NVR, (short)(DIROFFSETS[file] + DIRWRITTEN[file]), session[STAGED]);
+        DIRWRITTEN[file] += session[STAGED];
+        session[STAGED] = 0;
+    }
+
+
+    /*
+     * Data: length of the name, name, size of the file on 2 bytes.
+     * A file with the same name is replaced, and the new file is opened for writing.
+     */
+    void createFile( APDU apdu ) {
         byte[] buffer = apdu.getBuffer();
         if ( security && (! writePIN.isValidated()) )
             ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
-        else
+        short lc = apdu.setIncomingAndReceive();
+        byte length = buffer[ISO7816.OFFSET_CDATA];
+        if(length <= 0 || length > MAXNAMESIZE || lc != (short)(length + 3))
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        short size = Util.getShort(buffer, (short)(ISO7816.OFFSET_CDATA + 1 + length));
+        if(size < 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+
+        flush();
+        session[OPENED] = 0;
+        // The replaced file gives its room, and its entry when no other is free
+        short old = findFile(buffer, ISO7816.OFFSET_CDATA);
+        short file = old;
+        for(short i = 0; i < MAXFILES && file == old; i++)
         {
-            apdu.setIncomingAndReceive();
-            if(buffer[2] == (byte)0x01)
-            {
-                /*header*/ 
-                Util.arrayCopy(buffer,(short)5,NVR,(short)0,(short)(buffer[4]));
-            }
-            else
+            if(isFree(i))
+                file = i;
+        }
+        short offset = file < 0 ? -1 : allocate(size, old);
+        if(offset < 0)
+            ISOException.throwIt(ISO7816.SW_FILE_FULL);
+
+        // The whole entry and the removal of the replaced file, or nothing
+        JCSystem.beginTransaction();
+        if(old >= 0)
+            DIRNAMES[(short)(old * ENTRYSIZE)] = 0;
+        Util.arrayCopy(buffer, ISO7816.OFFSET_CDATA, DIRNAMES, (short)(file * ENTRYSIZE), (short)(length + 1));
+        DIROFFSETS[file] = offset;
+        DIRSIZES[file] = size;
+        DIRWRITTEN[file] = 0;
+        JCSystem.commitTransaction();
+        open(file);
+    }
+
+
+    /*
+     * Data: length of the name, name. Answers the size of the file then its committed length, on 2 bytes each:
+     * an upload which was cut can go on from the committed length.
+     */
+    void openFile( APDU apdu ) {
+        byte[] buffer = apdu.getBuffer();
+        if (security && (! readPIN.isValidated()) )
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        apdu.setIncomingAndReceive();
+        short file = findFile(buffer, ISO7816.OFFSET_CDATA);
+        if(file < 0)
+            ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+        open(file);
+        Util.setShort(buffer, (short)0, DIRSIZES[file]);
+        Util.setShort(buffer, (short)2, DIRWRITTEN[file]);
+        apdu.setOutgoingAndSend((short)0, (short)4);
+    }
+
+
+    /*
+     * Answers the free space then the largest free run on 2 bytes each: files are not moved, so the space
+     * left between them may be too short for a new file. Then for each file the length of its name,
+     * its name, its size and its committed length on 2 bytes each.
+     */
+    void listFiles( APDU apdu ) {
+        byte[] buffer = apdu.getBuffer();
+        if (security && (! readPIN.isValidated()) )
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        flush();
+        short free = NVRSIZE;
+        short length = 4;
+        for(short i = 0; i < MAXFILES; i++)
+        {
+            short entry = (short)(i * ENTRYSIZE);
+            if(!isFree(i))
             {
-                /*buffer*/
-                nvr_offset = (short)(NVR[0] + (short)3 + (short)((short)((short)0x00FF & (short)buffer[3] )*(short)MAXSIZEAPDU));
-                Util.arrayCopy(buffer,(short)5,NVR,(short)nvr_offset, (short)((short)0x00FF & (short)buffer[4]));
+                length = Util.arrayCopyNonAtomic(DIRNAMES, entry, buffer, length, (short)(DIRNAMES[entry] + 1));
+                length = Util.setShort(buffer, length, DIRSIZES[i]);
+                length = Util.setShort(buffer, length, DIRWRITTEN[i]);
+                free -= DIRSIZES[i];
             }
         }
+        Util.setShort(buffer, (short)0, free);
+        Util.setShort(buffer, (short)2, largestFree());
+        apdu.setOutgoingAndSend((short)0, length);
+    }
+
+
+    /*
+     * Data: length of the name, name. The space of the file is simply left to the next ones.
+     */
+    void deleteFile( APDU apdu ) {
+        byte[] buffer = apdu.getBuffer();
+        if ( security && (! writePIN.isValidated()) )
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        apdu.setIncomingAndReceive();
+        short file = findFile(buffer, ISO7816.OFFSET_CDATA);
+        if(file < 0)
+            ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+        if(file == openedFile())
+        {
+            session[OPENED] = 0;
+            session[STAGED] = 0;
+        }
+        DIRNAMES[(short)(file * ENTRYSIZE)] = 0;
+    }
+
+
+    /*
+     * Write the staged data of the opened file, and answer its committed length on 2 bytes.
+     */
+    void commitFile( APDU apdu ) {
+        byte[] buffer = apdu.getBuffer();
+        if ( security && (! writePIN.isValidated()) )
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        short file = openedFile();
+        if(file < 0)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        flush();
+        Util.setShort(buffer, (short)0, DIRWRITTEN[file]);
+        apdu.setOutgoingAndSend((short)0, (short)2);
+    }
+
+
+    /*
+     * Read Le bytes of the opened file, from the offset given by P1 P2: fewer at the end of its committed part.
+     * The bytes are sent straight from NVR, so that Le may be larger than the APDU buffer.
+     */
+    void readFileFromCard( APDU apdu ) {
+        byte[] buffer = apdu.getBuffer();
+        if (security && (! readPIN.isValidated()) )
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        short file = openedFile();
+        if(file < 0)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        flush();
+        short offset = Util.getShort(buffer, ISO7816.OFFSET_P1);
+        if(offset < 0 || offset > DIRWRITTEN[file])
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+
+        short length = apdu.setOutgoing();
+        if(length > (short)(DIRWRITTEN[file] - offset))
+            length = (short)(DIRWRITTEN[file] - offset);
+        apdu.setOutgoingLength(length);
+        apdu.sendBytesLong(NVR, (short)(DIROFFSETS[file] + offset), length);
+    }
+
+
+    /*
+     * Append the data to the opened file: P1 P2 must be the offset following what was already sent.
+     * The data is staged in RAM, and only written to NVR by STAGESIZE batches, by COMMITFILE,
+     * or when another file is opened. What was staged is lost on deselection or on tear.
+     */
+    void writeFileToCard( APDU apdu ) {
+        byte[] buffer = apdu.getBuffer();
+        if ( security && (! writePIN.isValidated()) )
+            ISOException.throwIt(SW_PIN_VERIFICATION_REQUIRED);
+        short file = openedFile();
+        if(file < 0)
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        short offset = Util.getShort(buffer, ISO7816.OFFSET_P1);
+        short lc = (short)(buffer[ISO7816.OFFSET_LC] & 0x00FF);
+        if(offset != (short)(DIRWRITTEN[file] + session[STAGED]))
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+        if(lc > (short)(DIRSIZES[file] - offset))
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+        if(lc > (short)(STAGESIZE - session[STAGED]))
+            flush();
+        short received = apdu.setIncomingAndReceive();
+        while(received > 0)
+        {
+            Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, stage, session[STAGED], received);
+            session[STAGED] += received;
+            received = apdu.receiveBytes(ISO7816.OFFSET_CDATA);
+        }
+        if(session[STAGED] == STAGESIZE)
+            flush();
     }
 
 
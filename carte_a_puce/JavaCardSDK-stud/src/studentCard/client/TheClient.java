@@ -1,6 +1,9 @@
 package client;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
 import opencard.core.service.*;
 import opencard.core.terminal.*;
 import opencard.core.util.*;
@@ -11,12 +14,25 @@ import opencard.opt.util.*;
 public class TheClient {
 
     private PassThruCardService servClient = null;
+    // APDUs submitted to the card without waiting, sent in order by a single thread
+    private final ExecutorService cardQueue = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        public Thread newThread( Runnable r ) {
+            Thread thread = new Thread( r, "card" );
+            thread.setDaemon( true );
+            return thread;
+        }
+    } );
     boolean DISPLAY = true;
     boolean loop = true;
 
     static final byte CLA                   = (byte)0x00;
     static final byte P1                    = (byte)0x00;
     static final byte P2                    = (byte)0x00;
+    static final byte COMMITFILE                = (byte)0x19;
+    static final byte DELETEFILE                = (byte)0x18;
+    static final byte LISTFILES                 = (byte)0x17;
+    static final byte OPENFILE                  = (byte)0x16;
+    static final byte CREATEFILE                = (byte)0x15;
     static final byte UPDATECARDKEY             = (byte)0x14;
     static final byte UNCIPHERFILEBYCARD            = (byte)0x13;
     static final byte CIPHERFILEBYCARD          = (byte)0x12;
@@ -32,6 +48,11 @@ public class TheClient {
     static final byte READNAMEFROMCARD          = (byte)0x02;
     static final byte WRITENAMETOCARD           = (byte)0x01;
     static final short MAXSIZEAPDU              = (short)0x0080;
+    // Largest data of a short APDU: the card kit has no extended length APDU
+    static final int MAXCHUNKSIZE               = 0xFF;
+    static final int[] CHUNKSIZES               = { 16, 32, 64, MAXSIZEAPDU, MAXCHUNKSIZE };
+
+    int chunkSize = MAXCHUNKSIZE;
 
 
     public TheClient() {
@@ -75,6 +96,36 @@ public class TheClient {
         return result;
     }
 
+    /*
+     * Queue the APDU, sent once those submitted before are answered: the caller prepares
+     * the next ones meanwhile. Traced APDUs are displayed as they are answered.
+     */
+    CompletableFuture<ResponseAPDU> submitAPDU( final CommandAPDU cmd, final boolean display ) {
+        return CompletableFuture.supplyAsync( new Supplier<ResponseAPDU>() {
+            public ResponseAPDU get() {
+                return sendAPDU( cmd, display );
+            }
+        }, cardQueue );
+    }
+
+    /*
+     * Queue APDUs sent in a row, the responses stopping at the first status other than 9000.
+     */
+    CompletableFuture<List<ResponseAPDU>> submitAPDUs( final List<CommandAPDU> cmds, final boolean display ) {
+        return CompletableFuture.supplyAsync( new Supplier<List<ResponseAPDU>>() {
+            public List<ResponseAPDU> get() {
+                List<ResponseAPDU> responses = new ArrayList<ResponseAPDU>( cmds.size() );
+                for( CommandAPDU cmd : cmds ) {
+                    ResponseAPDU resp = sendAPDU( cmd, display );
+                    responses.add( resp );
+                    if( resp.sw() != 0x9000 )
+                        break;
+                }
+                return responses;
+            }
+        }, cardQueue );
+    }
+
 
     /************************************************
      *   * *********** BEGINNING OF TOOLS ***************
@@ -171,119 +222,280 @@ public class TheClient {
     }
 
 
-    void readFileFromCard() {
-        CommandAPDU cmdAPDU;
-        ResponseAPDU resp;
-        byte buffer_offset = 0x00;
-        String filename = "test";
-        short nb_apdu_size_max = 0;
-        short size_last_apdu = 0;
+    /*
+     * Length of the name then the name, as the file commands of the card expect it.
+     */
+    byte[] fileName( String filename ) {
+        byte[] name = filename.getBytes();
+        byte[] data = new byte[1+name.length];
+        data[0] = (byte)name.length;
+        System.arraycopy(name,0,data,1,name.length);
+        return data;
+    }
 
-        try {
-            byte[] command = { CLA, READFILEFROMCARD, 0x01, P2, (byte)0x1F};
 
-            System.out.println("// Read file info from card");
-            cmdAPDU = new CommandAPDU( command );
+    CommandAPDU fileCommand( byte ins, byte p1, byte p2, byte[] data, int offset, int length ) {
+        byte[] command = new byte[5+length];
+        command[0] = CLA;
+        command[1] = ins;
+        command[2] = p1;
+        command[3] = p2;
+        command[4] = (byte)length;
+        System.arraycopy(data,offset,command,5,length);
+        return new CommandAPDU( command );
+    }
+
+
+    ResponseAPDU sendFileCommand( byte ins, byte p1, byte p2, byte[] data, boolean display ) {
+        CommandAPDU cmdAPDU = fileCommand( ins, p1, p2, data, 0, data.length );
+        if(display)
             displayAPDU(cmdAPDU);
-            resp = this.sendAPDU( cmdAPDU, DISPLAY );
-            byte[] bytes = resp.getBytes();
+        return this.sendAPDU( cmdAPDU, display );
+    }
 
-            String str = new String(bytes, 1, bytes[0]);
-            System.out.println( "Read file name : "+str);
-            filename = "from_file_"+str;
-            nb_apdu_size_max = (short)bytes[(short)bytes[0]+1];
-            size_last_apdu = (short)bytes[(short)bytes[0]+2];   
-        } catch( Exception e ) {}
 
-        try {
-            DataOutputStream br = new DataOutputStream(new FileOutputStream(filename));
+    /*
+     * Create the file on the card, write its content chunk bytes per APDU, at increasing offsets,
+     * then commit it: the card keeps the chunks in RAM and writes them by batches.
+     * The writes are submitted as they are built, each APDU being prepared while the card
+     * handles the one before, and their responses are checked before the commit.
+     */
+    boolean writeFile( String filename, byte[] content, int chunk, boolean display ) {
+        byte[] name = fileName(filename);
+        byte[] info = new byte[name.length+2];
+        System.arraycopy(name,0,info,0,name.length);
+        info[name.length] = (byte)(content.length >> 8);
+        info[name.length+1] = (byte)content.length;
+
+        if(display)
+            System.out.println("// Create the file into the card");
+        ResponseAPDU resp = sendFileCommand(CREATEFILE, P1, P2, info, display);
+        if(resp.sw() != 0x9000)
+        {
+            System.out.println("Cannot create "+filename+" in the card (not enough room?)");
+            return false;
+        }
+
+        List<CompletableFuture<ResponseAPDU>> writes = new ArrayList<CompletableFuture<ResponseAPDU>>();
+        for(int offset = 0; offset < content.length; offset += chunk)
+        {
+            CommandAPDU cmdAPDU = fileCommand(WRITEFILETOCARD, (byte)(offset >> 8), (byte)offset, content, offset, Math.min(chunk, content.length-offset));
+            if(display)
+            {
+                System.out.println("// Write file content into the card "+offset+"/"+content.length);
+                displayAPDU(cmdAPDU);
+            }
+            writes.add(submitAPDU(cmdAPDU, display));
+        }
+        // all of them are answered before any other APDU, even when one is refused
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()])).join();
+        for(int i = 0; i < writes.size(); i++)
+        {
+            resp = writes.get(i).join();
+            if(resp.sw() != 0x9000)
+            {
+                System.out.println("Write refused at offset "+i*chunk+": "+apdu2string(resp));
+                return false;
+            }
+        }
+
+        byte[] cmd = { CLA, COMMITFILE, P1, P2, (byte)0x02 };
+        if(display)
+            System.out.println("// Commit the file into the card");
+        resp = this.sendAPDU( new CommandAPDU( cmd ), display );
+        byte[] bytes = resp.getBytes();
+        if(resp.sw() != 0x9000 || (((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF)) != content.length)
+        {
+            System.out.println("Commit refused: "+apdu2string(resp));
+            return false;
+        }
+        return true;
+    }
+
 
-            do
+    /*
+     * Open the file on the card, then read it chunk bytes per APDU, at increasing offsets:
+     * null if it is missing, or if its upload was cut before the end.
+     * The reads are submitted as one batch, sent back to back.
+     */
+    byte[] readFile( String filename, int chunk, boolean display ) {
+        if(display)
+            System.out.println("// Open the file of the card");
+        ResponseAPDU resp = sendFileCommand(OPENFILE, P1, P2, fileName(filename), display);
+        if(resp.sw() != 0x9000)
+        {
+            System.out.println("No file "+filename+" in the card");
+            return null;
+        }
+        byte[] bytes = resp.getBytes();
+        int size = ((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF);
+        int written = ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        if(written != size)
+        {
+            System.out.println("Upload of "+filename+" was cut: "+written+" bytes of "+size);
+            return null;
+        }
+        byte[] content = new byte[size];
+
+        List<CommandAPDU> reads = new ArrayList<CommandAPDU>();
+        for(int offset = 0; offset < content.length; offset += chunk)
+        {
+            int length = Math.min(chunk, content.length-offset);
+            byte[] command = { CLA, READFILEFROMCARD, (byte)(offset >> 8), (byte)offset, (byte)length };
+            CommandAPDU cmdAPDU = new CommandAPDU( command );
+            if(display)
             {
-                short buffer_size = MAXSIZEAPDU;
-                if(buffer_offset == nb_apdu_size_max)
-                    buffer_size = size_last_apdu;
-                byte[] command = { CLA, READFILEFROMCARD, P1, P2, (byte)buffer_size};
-                buffer_offset++;
-
-                System.out.println("// Read file content from card "+(short)(buffer_offset-1 & (short)0xFF)+"/"+nb_apdu_size_max);
-                cmdAPDU = new CommandAPDU( command );
+                System.out.println("// Read file content from card "+offset+"/"+content.length);
                 displayAPDU(cmdAPDU);
-                resp = this.sendAPDU( cmdAPDU, DISPLAY );
-                try {
-                    byte[] bytes = resp.getBytes();
-                    br.write(bytes, 0, bytes.length - 2);
-                    br.flush();
-                } catch (Exception e) {
-                    System.out.println( "Problem with buffer writer" );
-                }
-            }while(buffer_offset != nb_apdu_size_max+1);
+            }
+            reads.add(cmdAPDU);
+        }
+        List<ResponseAPDU> responses = submitAPDUs(reads, display).join();
+        for(int i = 0; i < reads.size(); i++)
+        {
+            int offset = i*chunk;
+            int length = Math.min(chunk, content.length-offset);
+            // the batch stops at the first read refused
+            resp = responses.get(i);
+            bytes = resp.getBytes();
+            if(resp.sw() != 0x9000 || bytes.length-2 != length)
+            {
+                System.out.println("Read refused at offset "+offset+": "+apdu2string(resp));
+                return null;
+            }
+            System.arraycopy(bytes,0,content,offset,length);
+        }
+        return content;
+    }
+
+
+    byte[] readLocalFile( String filename ) {
+        try {
+            File file = new File(filename);
+            byte[] content = new byte[(int)file.length()];
+            DataInputStream br = new DataInputStream(new FileInputStream(file));
+            br.readFully(content);
             br.close();
-        } catch( Exception e ) {}
+            return content;
+        } catch( IOException e ) {
+            System.out.println( "Cannot read "+filename );
+            return null;
+        }
+    }
 
-        System.out.println( "" );
 
+    void report( String action, int nbBytes, long elapsed ) {
+        System.out.println( "  "+action+": "+nbBytes+" bytes in "+elapsed/1000000+" ms, "+
+                            String.format( "%.0f", nbBytes*1e9/elapsed )+" bytes/s" );
     }
 
 
-    void writeFileToCard() {    
-        CommandAPDU cmdAPDU;
-        ResponseAPDU resp;
-        byte buffer_offset = 0x00;
+    void readFileFromCard() {
+        System.out.print( "File name: " );
+        String filename = readKeyboard();
+        long start = System.nanoTime();
+        byte[] content = readFile(filename, chunkSize, DISPLAY);
+        long elapsed = System.nanoTime() - start;
+
+        if(content != null)
+        {
+            try {
+                DataOutputStream br = new DataOutputStream(new FileOutputStream("from_file_"+filename));
+                br.write(content);
+                br.close();
+                report("read by chunks of "+chunkSize, content.length, elapsed);
+            } catch (IOException e) {
+                System.out.println( "Problem with buffer writer" );
+            }
+        }
+        System.out.println( "" );
+    }
+
 
+    void writeFileToCard() {    
+        System.out.print( "File name: " );
         String filename = readKeyboard();
-        long filesize = new File(filename).length();
+        byte[] content = readLocalFile(filename);
+        if(content == null)
+            return;
+        filename = new File(filename).getName();
 
-        try {
-            byte[] info = filename.getBytes();
-            byte[] cmd = { CLA, WRITEFILETOCARD, 0x01, P2, (byte)(info.length + 3)};
-            byte[] command = new byte[5+info.length+3];
-            System.out.println(info.length);
+        long start = System.nanoTime();
+        if(writeFile(filename, content, chunkSize, DISPLAY))
+            report("written by chunks of "+chunkSize, content.length, System.nanoTime() - start);
+        System.out.println( "" );
+    }
 
-            System.arraycopy(cmd,0,command,0,5);
-            command[5] = (byte)(info.length);
-            System.arraycopy(info,0,command,6,info.length);
-            command[6 + info.length] = (byte)(filesize/MAXSIZEAPDU);
-            command[6 + info.length + 1] = (byte)(filesize - ((byte)(filesize/MAXSIZEAPDU))*(byte)MAXSIZEAPDU);
 
-            System.out.println("// Write file info into the card");
-            cmdAPDU = new CommandAPDU( command );
-            displayAPDU(cmdAPDU);
-            resp = this.sendAPDU( cmdAPDU, DISPLAY );
+    void listFiles() {
+        byte[] cmd_ = {CLA,LISTFILES,P1,P2,(byte)0x00};
+        ResponseAPDU resp = this.sendAPDU( new CommandAPDU( cmd_ ), DISPLAY );
+        byte[] bytes = resp.getBytes();
+        if(resp.sw() != 0x9000)
+            return;
 
-        } catch( Exception e ) {}
+        int offset = 4;
+        while(offset < bytes.length-2)
+        {
+            String name = new String(bytes, offset+1, bytes[offset]);
+            offset += 1+bytes[offset];
+            int size = ((bytes[offset] & 0xFF) << 8) | (bytes[offset+1] & 0xFF);
+            int written = ((bytes[offset+2] & 0xFF) << 8) | (bytes[offset+3] & 0xFF);
+            System.out.println( name+": "+size+" bytes"+(written != size ? ", "+written+" written (upload cut)" : "") );
+            offset += 4;
+        }
+        System.out.println( (((bytes[0] & 0xFF) << 8) | (bytes[1] & 0xFF))+" bytes free, files up to "+
+                            (((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF))+" bytes may be created" );
+    }
 
-        try {
-            DataInputStream br = new DataInputStream(new FileInputStream(filename));
-            byte[] buffer = new byte[0xFF];
-            int res = 0;
 
-            do
-            {
-                try {
-                    res = br.read(buffer, 0, MAXSIZEAPDU);
-                } catch (Exception e) {
-                    System.out.println( "Problem with buffer reader" );
-                }
-                byte[] cmd = { CLA, WRITEFILETOCARD, P1, (byte)buffer_offset, (byte)(res)};
-                byte[] command = new byte[5+res];
+    void deleteFile() {
+        System.out.print( "File name: " );
+        ResponseAPDU resp = sendFileCommand(DELETEFILE, P1, P2, fileName(readKeyboard()), DISPLAY);
+        if(resp.sw() != 0x9000)
+            System.out.println( "No such file in the card" );
+        System.out.println( "" );
+    }
 
-                System.arraycopy(cmd,0,command,0,5);
-                System.arraycopy(buffer,0,command,5,res);
-                buffer_offset++;
 
-                System.out.println("// Write file content into the card "+(short)(buffer_offset-1 & (short)0xFF)+"/"+filesize/MAXSIZEAPDU+":"+res);
-                cmdAPDU = new CommandAPDU( command );
-                displayAPDU(cmdAPDU);
-                resp = this.sendAPDU( cmdAPDU, DISPLAY );
-                if( this.apdu2string( resp ).equals( "6F 00" ) )
-                    break;
-            }while(res == MAXSIZEAPDU && (short)(buffer_offset & (short) 0xFF) * MAXSIZEAPDU < filesize);
-            br.close();
-        } catch( Exception e ) {}
+    void setChunkSize() {
+        System.out.print( "Bytes per APDU (1-"+MAXCHUNKSIZE+"): " );
+        try {
+            int size = Integer.parseInt(readKeyboard());
+            if(size > 0 && size <= MAXCHUNKSIZE)
+                chunkSize = size;
+        } catch( NumberFormatException e ) {}
+        System.out.println( "Files are sent by chunks of "+chunkSize+" bytes" );
+    }
 
-        System.out.println( "" );
 
+    /*
+     * Write then read back a file with each chunk size, without tracing the APDUs, and check what comes back.
+     */
+    void benchmarkFiles() {
+        System.out.print( "File name: " );
+        String filename = readKeyboard();
+        byte[] content = readLocalFile(filename);
+        if(content == null)
+            return;
+        filename = new File(filename).getName();
+
+        for(int i = 0; i < CHUNKSIZES.length; i++)
+        {
+            int chunk = CHUNKSIZES[i];
+            System.out.println( "Chunks of "+chunk+" bytes:" );
+            long start = System.nanoTime();
+            if(!writeFile(filename, content, chunk, false))
+                return;
+            report("write", content.length, System.nanoTime() - start);
+            start = System.nanoTime();
+            byte[] read = readFile(filename, chunk, false);
+            report("read", content.length, System.nanoTime() - start);
+            if(!java.util.Arrays.equals(content, read))
+                System.out.println( "  the file read differs from the file written!" );
+        }
+        sendFileCommand(DELETEFILE, P1, P2, fileName(filename), false);
+        System.out.println( "" );
     }
 
 
@@ -447,6 +659,10 @@ public class TheClient {
 
     void runAction( int choice ) {
         switch( choice ) {
+            case 18: benchmarkFiles(); break;
+            case 17: setChunkSize(); break;
+            case 16: deleteFile(); break;
+            case 15: listFiles(); break;
             case 14: updateCardKey(); break;
             case 13: uncipherFileByCard(); break;
             case 12: cipherFileByCard(); break;
@@ -495,6 +711,10 @@ public class TheClient {
 
     void printMenu() {
         System.out.println( "" );
+        System.out.println( "18: measure file transfers for each chunk size" );
+        System.out.println( "17: set the chunk size of file transfers" );
+        System.out.println( "16: delete a file from the card" );
+        System.out.println( "15: list the files of the card" );
         System.out.println( "14: update the DES key within the card" );
         System.out.println( "13: uncipher a file by the card" );
         System.out.println( "12: cipher a file by the card" );